@@ -0,0 +1,90 @@
+package uk.co.electronstudio.mobcontrol;
+
+import com.badlogic.gdx.controllers.Controller;
+import com.badlogic.gdx.controllers.ControllerAdapter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.electronstudio.mobcontrol.MobController.SDL_CONTROLLER_AXIS_MAX;
+
+/**
+ * Cost of listener fan-out in pollState: 16 controllers all move a stick and press a button every frame,
+ * with a number of listeners on the manager and on each controller.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+    static final int CONTROLLERS = 16;
+
+    @Param({"1", "8", "32"})
+    public int listeners;
+
+    private MobControllerManager manager;
+    private WebSocket[] webSockets;
+    private final float[] axisValues = new float[SDL_CONTROLLER_AXIS_MAX];
+    private int frame;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        manager = MobControllerManager.headless();
+        webSockets = new WebSocket[CONTROLLERS];
+        for (int i = 0; i < CONTROLLERS; i++) {
+            webSockets[i] = new WebSocket(manager);
+            MobController controller = webSockets[i].connectLocal("benchmark " + i);
+            controller.addListener(new ConsumingListener(blackhole));
+        }
+        for (int i = 0; i < listeners; i++) {
+            manager.addListener(new ConsumingListener(blackhole));
+        }
+        manager.pollState();
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public void pollState() {
+        frame++;
+        long now = System.nanoTime();
+        axisValues[0] = (frame & 1) == 0 ? 0.5f : -0.5f;
+        int buttons = frame & 1;
+        for (WebSocket webSocket : webSockets) {
+            webSocket.padUpdate(1, buttons, 1, axisValues, now);
+        }
+        manager.pollState();
+    }
+
+    static class ConsumingListener extends ControllerAdapter {
+        private final Blackhole blackhole;
+
+        ConsumingListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public boolean buttonDown(Controller controller, int buttonIndex) {
+            blackhole.consume(buttonIndex);
+            return false;
+        }
+
+        @Override
+        public boolean buttonUp(Controller controller, int buttonIndex) {
+            blackhole.consume(buttonIndex);
+            return false;
+        }
+
+        @Override
+        public boolean axisMoved(Controller controller, int axisIndex, float value) {
+            blackhole.consume(value);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handling one incoming message on the socket thread, from frame payload to updated controller state.
+ * Run with the gc profiler to see allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    /**
+     * What the current client sends while a stick is held: both axes of one stick, plus sequence and time.
+     */
+    static final String STICK_MOVE = "{\"AXIS_LEFTX\":0.4472135954999579,\"AXIS_LEFTY\":-0.8944271909999159,"
+            + "\"__seq__\":1234,\"__time__\":1571234567890}";
+
+    /**
+     * A button press, as sent by the current client.
+     */
+    static final String BUTTON_PRESS = "{\"BUTTON_A\":true,\"__seq__\":1235,\"__time__\":1571234567901}";
+
+    /**
+     * Pretty printed message from older clients.
+     */
+    static final String LEGACY_STICK_MOVE = "{\n    \"AXIS_LEFTX\": 0.4472135954999579,\n"
+            + "    \"AXIS_LEFTY\": -0.8944271909999159\n}";
+
+    static final String SET_NAME = "{\"__type__\":\"set_name\",\"name\":\"Player One\"}";
+
+    private MobControllerManager manager;
+    private WebSocket webSocket;
+    private byte[] binaryFrame;
+
+    @Setup
+    public void setup() {
+        manager = MobControllerManager.headless();
+        webSocket = new WebSocket(manager);
+        webSocket.connectLocal("benchmark");
+        manager.pollState();
+
+        binaryFrame = new byte[PadBinaryProtocol.FRAME_LENGTH + 4];
+        binaryFrame[0] = PadBinaryProtocol.VERSION;
+        binaryFrame[1] = PadBinaryProtocol.FLAG_TIMESTAMP;
+        binaryFrame[4] = 1;
+        binaryFrame[7] = 0x40;
+        binaryFrame[9] = (byte) 0x80;
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public void stickMove() {
+        webSocket.onWebSocketText(STICK_MOVE);
+    }
+
+    @Benchmark
+    public void buttonPress() {
+        webSocket.onWebSocketText(BUTTON_PRESS);
+    }
+
+    @Benchmark
+    public void legacyStickMove() {
+        webSocket.onWebSocketText(LEGACY_STICK_MOVE);
+    }
+
+    @Benchmark
+    public void setName() {
+        webSocket.onWebSocketText(SET_NAME);
+    }
+
+    @Benchmark
+    public void binaryFrame() {
+        webSocket.onWebSocketBinary(binaryFrame, 0, binaryFrame.length);
+    }
+}
@@ -0,0 +1,70 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.electronstudio.mobcontrol.MobController.SDL_CONTROLLER_AXIS_MAX;
+
+/**
+ * Cost of one game frame's MobControllerManager.pollState with N controllers, of which a fraction had their
+ * stick moved since the last frame. The input is applied on the benchmark thread just before each poll, and
+ * is included in the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollStateBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int controllers;
+
+    /**
+     * Fraction of controllers that change each frame.
+     */
+    @Param({"0", "0.1", "1"})
+    public float changeRate;
+
+    @Param({"false", "true"})
+    public boolean eventDriven;
+
+    private MobControllerManager manager;
+    private WebSocket[] webSockets;
+    private final float[] axisValues = new float[SDL_CONTROLLER_AXIS_MAX];
+    private int frame;
+    private int changesPerFrame;
+    private int next;
+
+    @Setup
+    public void setup() {
+        manager = MobControllerManager.headless();
+        manager.setEventDriven(eventDriven);
+        webSockets = new WebSocket[controllers];
+        for (int i = 0; i < controllers; i++) {
+            webSockets[i] = new WebSocket(manager);
+            webSockets[i].connectLocal("benchmark " + i);
+        }
+        manager.pollState();
+        changesPerFrame = Math.round(controllers * changeRate);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public void pollState() {
+        frame++;
+        long now = System.nanoTime();
+        for (int i = 0; i < changesPerFrame; i++) {
+            axisValues[0] = (frame & 1) == 0 ? 0.5f : -0.5f;
+            webSockets[next].padUpdate(0, 0, 1, axisValues, now);
+            next = (next + 1) % controllers;
+        }
+        manager.pollState();
+    }
+}
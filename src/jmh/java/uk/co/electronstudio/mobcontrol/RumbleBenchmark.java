@@ -0,0 +1,43 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the rumble message sent to a phone, and of asking for rumble on the game thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RumbleBenchmark {
+
+    private float magnitude = 0.75f;
+    private MobControllerManager manager;
+    private WebSocket webSocket;
+
+    @Setup
+    public void setup() {
+        manager = MobControllerManager.headless();
+        webSocket = new WebSocket(manager);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public String rumbleMessage() {
+        return WebSocket.rumbleMessage(magnitude, 1f - magnitude, 500);
+    }
+
+    @Benchmark
+    public void rumble() {
+        webSocket.sendRumble(magnitude, 1f - magnitude, 500);
+        webSocket.flushOutput();
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection limits of one server from its {@link ServerConfig}, shared by every manager using it.
+ * Like the player limit, each is checked twice: cheaply before the upgrade, so most extra connections are
+ * turned away with an HTTP error, and exactly when the socket opens, which closes any that got through at once.
+ */
+final class AdmissionControl {
+
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    final int maxConnections;
+    final int maxConnectionsPerAddress;
+    final int maxMessageRate;
+    final int messageBurst;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Integer> connectionsByAddress = new ConcurrentHashMap<>();
+
+    AdmissionControl(ServerConfig config) {
+        maxConnections = config.maxConnections;
+        maxConnectionsPerAddress = config.maxConnectionsPerAddress;
+        maxMessageRate = config.maxMessageRate;
+        messageBurst = config.messageBurst;
+    }
+
+    /**
+     * @return the limit one more connection from this address would be over, or -1 if there's room
+     */
+    int check(InetAddress address) {
+        if (maxConnections > 0 && connections.get() >= maxConnections) {
+            return ServerMetrics.REJECTED_SERVER_FULL;
+        }
+        if (maxConnectionsPerAddress > 0 && address != null) {
+            Integer count = connectionsByAddress.get(address);
+            if (count != null && count >= maxConnectionsPerAddress) {
+                return ServerMetrics.REJECTED_ADDRESS;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts a new connection, unless it's over a limit.
+     *
+     * @return the limit it's over, or -1 if it was counted and must be {@link #close(InetAddress)}d
+     */
+    int open(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            return ServerMetrics.REJECTED_SERVER_FULL;
+        }
+        if (address != null) {
+            int count = connectionsByAddress.merge(address, 1, Integer::sum);
+            if (count > maxConnectionsPerAddress && maxConnectionsPerAddress > 0) {
+                close(address);
+                return ServerMetrics.REJECTED_ADDRESS;
+            }
+        }
+        return -1;
+    }
+
+    void close(InetAddress address) {
+        connections.decrementAndGet();
+        if (address != null) {
+            connectionsByAddress.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+}
@@ -0,0 +1,126 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import static uk.co.electronstudio.mobcontrol.MobController.SDL_CONTROLLER_AXIS_MAX;
+
+/**
+ * The live button and axis state of one controller, written by the socket thread and read by the game thread.
+ * Buttons are packed into a long, bit n being button n. Each update is applied under a StampedLock write lock,
+ * and readers use optimistic reads (effectively a seqlock) so they never block the writer, never allocate and
+ * always see every value from the same message.
+ * <p>
+ * It also remembers when the oldest update not yet seen by the game thread arrived, for latency statistics.
+ */
+final class ControllerState {
+
+    static final int AXIS_CHANGED_SHIFT = 16;
+
+    private final StampedLock lock = new StampedLock();
+    private long buttons;
+    private final float[] axes = new float[SDL_CONTROLLER_AXIS_MAX];
+    private final AtomicLong pendingSince = new AtomicLong();
+
+    /**
+     * Applies the values whose bits are set in buttonMask/axisMask, leaving the others alone.
+     *
+     * @param receivedNanos System.nanoTime() when the message arrived
+     * @return which values actually changed: bit n for button n, bit AXIS_CHANGED_SHIFT + n for axis n
+     */
+    int update(int buttonMask, int buttonValues, int axisMask, float[] axisValues, long receivedNanos) {
+        int changed;
+        long stamp = lock.writeLock();
+        try {
+            long newButtons = (buttons & ~(long) buttonMask) | (buttonValues & buttonMask);
+            changed = (int) (buttons ^ newButtons);
+            buttons = newButtons;
+            for (int i = 0; i < SDL_CONTROLLER_AXIS_MAX; i++) {
+                if ((axisMask & (1 << i)) != 0 && axes[i] != axisValues[i]) {
+                    axes[i] = axisValues[i];
+                    changed |= 1 << (AXIS_CHANGED_SHIFT + i);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        pendingSince.compareAndSet(0, receivedNanos);
+        return changed;
+    }
+
+    /**
+     * @return arrival time of the oldest update since the last call, or 0 if there hasn't been one
+     */
+    long takePendingSince() {
+        return pendingSince.getAndSet(0);
+    }
+
+    void reset() {
+        long stamp = lock.writeLock();
+        try {
+            buttons = 0;
+            for (int i = 0; i < SDL_CONTROLLER_AXIS_MAX; i++) {
+                axes[i] = 0f;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies a consistent snapshot of the axes into axesOut.
+     *
+     * @return the button bits from the same snapshot
+     */
+    long read(float[] axesOut) {
+        long stamp = lock.tryOptimisticRead();
+        long b = buttons;
+        for (int i = 0; i < SDL_CONTROLLER_AXIS_MAX; i++) {
+            axesOut[i] = axes[i];
+        }
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                b = buttons;
+                for (int i = 0; i < SDL_CONTROLLER_AXIS_MAX; i++) {
+                    axesOut[i] = axes[i];
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return b;
+    }
+
+    long getButtons() {
+        long stamp = lock.tryOptimisticRead();
+        long b = buttons;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                b = buttons;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return b;
+    }
+
+    boolean getButton(int buttonCode) {
+        return (getButtons() & (1L << buttonCode)) != 0;
+    }
+
+    float getAxis(int axisCode) {
+        long stamp = lock.tryOptimisticRead();
+        float value = axes[axisCode];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = axes[axisCode];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,210 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing statistics for the input of one controller, or for a whole manager via
+ * {@link MobControllerManager#getStats()}. All times are in microseconds.
+ * <p>
+ * Message statistics are recorded by the socket thread as messages arrive, apply latency by the game thread
+ * in pollState. Any thread may read them.
+ */
+public class ControllerStats {
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    final Histogram applyLatency = new Histogram();
+    final Histogram messageInterval = new Histogram();
+    final Histogram networkJitter = new Histogram();
+
+    final LongAdder messages = new LongAdder();
+    final LongAdder droppedSequences = new LongAdder();
+    final LongAdder outOfOrderSequences = new LongAdder();
+    final LongAdder overRateMessages = new LongAdder();
+    final LongAdder droppedOutboundMessages = new LongAdder();
+    final LongAdder rejectedMessages = new LongAdder();
+    volatile long clientCoalescedMessages;
+
+    /**
+     * Minimum time between messages that the client has been asked to keep to, 0 for no limit.
+     */
+    volatile long pacingIntervalNanos;
+
+    // Only touched by the socket thread.
+    private int lastSequence = -1;
+    private long lastReceiveNanos;
+    private long minTransitMillis = Long.MAX_VALUE;
+    private long rateWindowStart;
+    private int rateWindowCount;
+
+    private volatile double messageRate;
+    private volatile long messageRateUpdated;
+
+    /**
+     * Called by the socket thread for every pad message.
+     *
+     * @param receivedNanos System.nanoTime() when the message arrived
+     * @param sequence      16 bit sequence number or -1 if the client didn't send one
+     * @param clientTime    client clock in ms when sent, or -1 if the client didn't send it
+     * @param buttonEdge    the message changed a button, which the client may send at any time
+     */
+    void messageReceived(long receivedNanos, int sequence, long clientTime, boolean buttonEdge) {
+        messages.increment();
+
+        if (lastReceiveNanos != 0) {
+            long interval = receivedNanos - lastReceiveNanos;
+            messageInterval.record(interval / 1000);
+            // Allow plenty for network jitter bunching up messages that were sent correctly spaced.
+            if (!buttonEdge && interval < pacingIntervalNanos / 2) {
+                overRateMessages.increment();
+            }
+        }
+        lastReceiveNanos = receivedNanos;
+
+        if (rateWindowCount == 0) {
+            rateWindowStart = receivedNanos;
+        }
+        rateWindowCount++;
+        long window = receivedNanos - rateWindowStart;
+        if (window >= RATE_WINDOW_NANOS) {
+            messageRate = (rateWindowCount - 1) * 1e9 / window;
+            messageRateUpdated = receivedNanos;
+            rateWindowCount = 1;
+            rateWindowStart = receivedNanos;
+        }
+
+        if (sequence >= 0) {
+            int gap = lastSequence < 0 ? 0 : (sequence - lastSequence - 1) & 0xffff;
+            if (gap >= 0x8000) {
+                // Arrived after a later message, so it was counted as dropped when that one came.
+                outOfOrderSequences.increment();
+                droppedSequences.decrement();
+            } else {
+                droppedSequences.add(gap);
+                lastSequence = sequence;
+            }
+        }
+
+        if (clientTime >= 0) {
+            // The clocks aren't synchronised, but the lowest transit time seen so far is a good baseline,
+            // so anything above it is delay added by the network or the phone.
+            long transit = System.currentTimeMillis() - clientTime;
+            if (transit < minTransitMillis) {
+                minTransitMillis = transit;
+            }
+            networkJitter.record((transit - minTransitMillis) * 1000);
+        }
+    }
+
+    /**
+     * Called by the game thread when pollState applies input that has been waiting since receivedNanos.
+     */
+    void inputApplied(long receivedNanos, long appliedNanos) {
+        applyLatency.record((appliedNanos - receivedNanos) / 1000);
+    }
+
+    /**
+     * Time from a message arriving at the server to pollState applying it.
+     */
+    public Histogram getApplyLatency() {
+        return applyLatency;
+    }
+
+    /**
+     * Time between consecutive messages.
+     */
+    public Histogram getMessageInterval() {
+        return messageInterval;
+    }
+
+    /**
+     * Transit time of each message above the fastest transit seen, i.e. delay variation caused by the network.
+     * Only recorded for clients that send a timestamp.
+     */
+    public Histogram getNetworkJitter() {
+        return networkJitter;
+    }
+
+    public long getMessageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * Messages per second over the last second, 0 if no messages have arrived recently.
+     */
+    public double getMessageRate() {
+        if (System.nanoTime() - messageRateUpdated > 2 * RATE_WINDOW_NANOS) {
+            return 0;
+        }
+        return messageRate;
+    }
+
+    /**
+     * Number of sequence numbers skipped, i.e. messages the client sent that never arrived.
+     */
+    public long getDroppedSequences() {
+        return droppedSequences.sum();
+    }
+
+    public long getOutOfOrderSequences() {
+        return outOfOrderSequences.sum();
+    }
+
+    /**
+     * Messages that arrived much sooner after the previous one than the advertised send rate allows. Button
+     * changes don't count, the client sends those straight away.
+     */
+    public long getOverRateMessages() {
+        return overRateMessages.sum();
+    }
+
+    /**
+     * Input changes the client merged into a later message to keep to the send rate, as reported by the client.
+     */
+    public long getClientCoalescedMessages() {
+        return clientCoalescedMessages;
+    }
+
+    /**
+     * Broadcast messages not sent to this phone because too much was already waiting to go to it.
+     */
+    public long getDroppedOutboundMessages() {
+        return droppedOutboundMessages.sum();
+    }
+
+    /**
+     * Messages from this phone thrown away unread, because it sent too many or they weren't valid.
+     * See {@link ServerConfig#maxMessageRate}.
+     */
+    public long getRejectedMessages() {
+        return rejectedMessages.sum();
+    }
+
+    /**
+     * Adds another controller's statistics into this one, for aggregate views.
+     */
+    void add(ControllerStats other) {
+        applyLatency.add(other.applyLatency);
+        messageInterval.add(other.messageInterval);
+        networkJitter.add(other.networkJitter);
+        messages.add(other.messages.sum());
+        droppedSequences.add(other.droppedSequences.sum());
+        outOfOrderSequences.add(other.outOfOrderSequences.sum());
+        overRateMessages.add(other.overRateMessages.sum());
+        droppedOutboundMessages.add(other.droppedOutboundMessages.sum());
+        rejectedMessages.add(other.rejectedMessages.sum());
+        clientCoalescedMessages += other.clientCoalescedMessages;
+        messageRate += other.getMessageRate();
+        messageRateUpdated = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return "messages=" + getMessageCount() + " rate=" + Math.round(getMessageRate()) + "/s"
+                + " dropped=" + getDroppedSequences() + " outOfOrder=" + getOutOfOrderSequences()
+                + " overRate=" + getOverRateMessages() + " coalesced=" + getClientCoalescedMessages()
+                + " droppedOutbound=" + getDroppedOutboundMessages() + " rejected=" + getRejectedMessages()
+                + " applyLatency[" + applyLatency + "]"
+                + " jitter[" + networkJitter + "]";
+    }
+}
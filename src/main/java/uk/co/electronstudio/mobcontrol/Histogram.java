@@ -0,0 +1,124 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log-linear histogram of non-negative long values. Values below 16 are counted exactly, above that
+ * each power of two is split into 8 buckets, so percentiles are accurate to within 12.5%.
+ * Recording is lock-free and doesn't allocate, so it can be done from socket threads and the game thread at once.
+ */
+public final class Histogram {
+
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 62;
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketFor(long value) {
+        if (value < LINEAR) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long lowestValueIn(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        return lowestValueIn(bucket) + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketFor(value));
+        total.addAndGet(value);
+        long m;
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) break;
+        }
+    }
+
+    /**
+     * Adds all the values recorded in another histogram to this one.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        total.addAndGet(other.total.get());
+        long value = other.max.get();
+        long m;
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) break;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) total.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound for the given percentile of recorded values, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100.0);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "p50=" + getPercentile(50) + " p90=" + getPercentile(90) + " p99=" + getPercentile(99)
+                + " max=" + getMax() + " n=" + getCount();
+    }
+}
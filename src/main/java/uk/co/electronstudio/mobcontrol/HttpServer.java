@@ -1,120 +1,379 @@
 package uk.co.electronstudio.mobcontrol;
 
+import org.eclipse.jetty.server.AbstractConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.HandlerList;
-import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.log.Log;
-import org.eclipse.jetty.util.log.StdErrLog;
-import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
+import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class HttpServer {
-    final Server server;
+    static final String SOCKET_PATH = "/mobcontrol/";
+
+    /**
+     * Created by the first start, on the starting thread, and kept for the next.
+     */
+    volatile Server server;
+    final StaticAssetHandler assetHandler;
+    final ServerMetrics metrics = new ServerMetrics();
+    final AdmissionControl admission;
+    private final WebSocketServlet servlet;
+    private final ThreadPool threadPool;
+    private final int port;
+    private final int acceptors;
+    private final int selectors;
+    private final int maxMessageSize;
+    private final int idleTimeoutMs;
+    private final boolean exposeMetrics;
+    private final int threadPriority;
+    private final String keyStorePath;
+    private final String keyStorePassword;
+    /**
+     * Completes when the current start does, null while stopped.
+     */
+    private CompletableFuture<URI> started;
 
     public static void main(String[] args) throws Exception {
-        HttpServer server = new HttpServer();
-        server.start();
+        MobControllerManager manager = new MobControllerManager();
         Desktop.getDesktop().browse(new URI("http://localhost"));
-        server.waitForFinish();
+        manager.server.waitForFinish();
     }
 
-    public HttpServer() throws MalformedURLException, URISyntaxException {
-        this(getDefaultPort());
+    /**
+     * @param manager receives the controllers that connect to this server
+     */
+    public HttpServer(MobControllerManager manager) throws MalformedURLException, URISyntaxException {
+        this(manager, new ServerConfig());
     }
 
-    private static int getDefaultPort() {
-        if (System.getProperty("os.name").toLowerCase().contains("linux")) {
-            return 8080;
-        } else {
-            return 80;
-        }
+    public HttpServer(MobControllerManager manager, int port)
+            throws MalformedURLException, IllegalStateException, URISyntaxException {
+        this(manager, configWithPort(port));
+    }
+
+    private static ServerConfig configWithPort(int port) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        return config;
     }
 
+    public HttpServer(MobControllerManager manager, ServerConfig config)
+            throws MalformedURLException, IllegalStateException, URISyntaxException {
+        this(new Servlet(manager), config);
+    }
 
-    public HttpServer(int port) throws MalformedURLException, IllegalStateException, URISyntaxException {
-        StdErrLog logger = new StdErrLog();
-        logger.setLevel(StdErrLog.LEVEL_INFO);
-        Log.setLog(logger);
+    /**
+     * @param servlet creates the sockets for connections to /mobcontrol/
+     */
+    HttpServer(WebSocketServlet servlet, ServerConfig config)
+            throws MalformedURLException, IllegalStateException, URISyntaxException {
+        Log.setLog(new JettyLog());
+        admission = new AdmissionControl(config);
+        this.servlet = servlet;
+        threadPool = createThreadPool(config);
+        port = config.port;
+        acceptors = config.acceptors;
+        selectors = config.selectors;
+        maxMessageSize = config.maxMessageSize;
+        idleTimeoutMs = config.idleTimeoutMs;
+        threadPriority = config.threadPriority;
+        exposeMetrics = config.metrics;
+        keyStorePath = config.keyStorePath;
+        keyStorePassword = config.keyStorePassword;
+        // The client files are read when the server starts.
+        assetHandler = new StaticAssetHandler();
+    }
 
+    /**
+     * Builds Jetty's handlers and connector, which loads most of its classes, so it's left to the first start.
+     */
+    private Server createServer() {
         ServletContextHandler servletHandler = new ServletContextHandler(ServletContextHandler.SESSIONS);
         servletHandler.setContextPath("/");
-        ServletHolder holderEvents = new ServletHolder("ws-events", Servlet.class);
-        servletHandler.addServlet(holderEvents, "/mobcontrol/*");
+        ServletHolder holderEvents = new LazyServletHolder("ws-events", servlet);
+        // Read by WebSocketServlet into its policy. Messages over the size limit close the connection unread.
+        holderEvents.setInitParameter("maxTextMessageSize", Integer.toString(maxMessageSize));
+        holderEvents.setInitParameter("maxBinaryMessageSize", Integer.toString(maxMessageSize));
+        holderEvents.setInitParameter("inputBufferSize", Integer.toString(maxMessageSize));
+        holderEvents.setInitParameter("maxIdleTime", Integer.toString(idleTimeoutMs));
+        servletHandler.addServlet(holderEvents, SOCKET_PATH + "*");
         servletHandler.setStopTimeout(3000);
         servletHandler.getSessionHandler().setMaxInactiveInterval(3);
 
-
-        URL webRootLocation = this.getClass().getResource("/client/index.html");
-        if (webRootLocation == null) {
-            throw new IllegalStateException("Unable to determine webroot URL location");
-        }
-
-        URI webRootUri = URI.create(webRootLocation.toURI().toASCIIString().replaceFirst("/index.html$", "/"));
-
-        System.err.printf("Web Root URI: %s%n", webRootUri);
-
-        ResourceHandler resourceHandler = new ResourceHandler();
-        resourceHandler.setDirectoriesListed(true);
-        resourceHandler.setWelcomeFiles(new String[]{"index.html"});
-
-        resourceHandler.setBaseResource(Resource.newResource(webRootUri));
-
-
         HandlerList handlers = new HandlerList();
-        handlers.setHandlers(new Handler[]{resourceHandler, servletHandler});
+        if (exposeMetrics) {
+            handlers.setHandlers(new Handler[]{new ServerMetrics.Handler(metrics), assetHandler, servletHandler});
+        } else {
+            handlers.setHandlers(new Handler[]{assetHandler, servletHandler});
+        }
 
 
-        server = new Server();
+        Server server = new Server(threadPool);
         server.setStopAtShutdown(true);
         server.setStopTimeout(3000);
-        ServerConnector connector = new ServerConnector(server);
+        ServerConnector connector = new ServerConnector(server, acceptors, selectors, createConnectionFactories());
         connector.setPort(port);
         server.addConnector(connector);
         server.setHandler(handlers);
+        return server;
+    }
+
+    /**
+     * HTTP, wrapped in TLS if there's a key store.
+     */
+    private ConnectionFactory[] createConnectionFactories() {
+        if (keyStorePath == null) {
+            return new ConnectionFactory[]{new HttpConnectionFactory()};
+        }
+        SslContextFactory.Server ssl = new SslContextFactory.Server();
+        ssl.setKeyStorePath(keyStorePath);
+        ssl.setKeyStorePassword(keyStorePassword);
+        HttpConfiguration https = new HttpConfiguration();
+        https.addCustomizer(new SecureRequestCustomizer());
+        return AbstractConnectionFactory.getFactories(ssl, new HttpConnectionFactory(https));
+    }
+
+    private static ThreadPool createThreadPool(ServerConfig config) {
+        if (config.threadPool != null) {
+            return config.threadPool;
+        }
+        if (config.virtualThreads) {
+            VirtualThreadPool pool = VirtualThreadPool.create();
+            if (pool != null) {
+                return pool;
+            }
+            MobLog.warn("Virtual threads need Java 21, using a thread pool instead");
+        }
+        QueuedThreadPool pool = new QueuedThreadPool(config.maxThreads, config.minThreads);
+        pool.setName("MobControl server");
+        pool.setThreadsPriority(config.threadPriority);
+        return pool;
     }
 
+    /**
+     * Adds a pad layout that phones can choose on their settings page.
+     *
+     * @param sectionPng image with a flat colour for each input, as in the client's pads directory
+     * @param graphicSvg what the player sees
+     * @return the layout's number
+     */
+    public int addPadLayout(String name, byte[] sectionPng, byte[] graphicSvg) throws IOException {
+        return assetHandler.addPadLayout(name, sectionPng, graphicSvg);
+    }
+
+    /**
+     * Counters and timings of everything using this server, also served at /metrics unless turned off in the
+     * {@link ServerConfig}.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts the server and waits until it accepts connections. Does nothing if it's started already, or waits
+     * for a start that's in progress.
+     */
     public void start() {
-        try {
+        CompletableFuture<URI> future;
+        boolean starting;
+        synchronized (this) {
+            starting = started == null;
+            if (starting) {
+                started = new CompletableFuture<>();
+            }
+            future = started;
+        }
+        if (starting) {
+            start(future);
+        } else {
+            future.handle((uri, t) -> null).join();
+        }
+    }
+
+    /**
+     * Starts the server on a new thread, so e.g. a game can open its window while the client files are read.
+     * Calling it again while the server is starting or running returns the same future.
+     *
+     * @return completes with the server's address once it accepts connections, or exceptionally if it fails to
+     * start
+     */
+    public CompletableFuture<URI> startAsync() {
+        CompletableFuture<URI> future;
+        synchronized (this) {
+            if (started != null) {
+                return started;
+            }
+            future = started = new CompletableFuture<>();
+        }
+        Thread thread = new Thread(() -> start(future), "MobControl start");
+        thread.setDaemon(true);
+        thread.setPriority(threadPriority);
+        thread.start();
+        return future;
+    }
 
+    private void start(CompletableFuture<URI> future) {
+        try {
+            long begin = System.nanoTime();
+            assetHandler.load();
+            long loaded = System.nanoTime();
+            Server server = this.server;
+            if (server == null) {
+                server = this.server = createServer();
+            }
             server.start();
+            long jettyStarted = System.nanoTime();
             //server.dump(System.err);
-
+            if (exposeMetrics) {
+                metrics.register(((ServerConnector) server.getConnectors()[0]).getLocalPort());
+            }
+            long end = System.nanoTime();
+            metrics.started(loaded - begin, jettyStarted - loaded, end - begin);
+            URI uri = server.getURI();
+            MobLog.info("Server started at {} in {} ms, client files {} ms, Jetty {} ms", uri, millis(end - begin),
+                    millis(loaded - begin), millis(jettyStarted - loaded));
+            future.complete(uri);
         } catch (Throwable t) {
-            t.printStackTrace(System.err);
+            MobLog.error("Server failed to start", t);
+            synchronized (this) {
+                if (started == future) {
+                    started = null;
+                }
+            }
+            future.completeExceptionally(t);
         }
     }
 
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * @return the address phones connect to, or null if the server isn't running
+     */
+    public URI getURI() {
+        Server server = this.server;
+        return server != null && server.isStarted() ? server.getURI() : null;
+    }
+
     public void waitForFinish() {
+        Server server = this.server;
+        if (server == null) return;
         try {
             server.join();
         } catch (Throwable t) {
-            t.printStackTrace(System.err);
+            MobLog.error("Server failed while running", t);
         }
     }
 
+    /**
+     * Stops the server, waiting for it to finish starting first if need be. It keeps its thread pool, connector
+     * and client files, so it can be started again quickly.
+     */
     public void stop() {
+        CompletableFuture<URI> future;
+        synchronized (this) {
+            future = started;
+            started = null;
+        }
+        if (future != null) {
+            future.handle((uri, t) -> null).join();
+        }
+        metrics.unregister();
+        Server server = this.server;
+        if (server == null) return;
         try {
             server.stop();
         } catch (Throwable t) {
-            t.printStackTrace(System.err);
+            MobLog.error("Server failed to stop", t);
         }
     }
 
+    /**
+     * Creates sockets for one manager, so several managers can run in one process.
+     */
     public static class Servlet extends WebSocketServlet {
+        private final MobControllerManager manager;
+
+        public Servlet(MobControllerManager manager) {
+            this.manager = manager;
+        }
+
         @Override
         public void configure(WebSocketServletFactory factory) {
-            factory.register(WebSocket.class);
+            WebSocketCreator creator = (request, response) -> create(manager, request, response);
+            factory.setCreator(creator);
+        }
+    }
+
+    /**
+     * Holds a servlet that exists already but only initialises it when the first phone connects. Given the
+     * instance itself, Jetty would initialise it while starting.
+     */
+    private static final class LazyServletHolder extends ServletHolder {
+        private final javax.servlet.Servlet servlet;
+
+        LazyServletHolder(String name, javax.servlet.Servlet servlet) {
+            super(name, servlet.getClass());
+            this.servlet = servlet;
+        }
+
+        @Override
+        protected javax.servlet.Servlet newInstance() {
+            return servlet;
+        }
+    }
+
+    /**
+     * @return null, having sent an error response, if the server has too many connections or the manager no room
+     * for another controller
+     */
+    static WebSocket create(MobControllerManager manager, ServletUpgradeRequest request,
+                            ServletUpgradeResponse response) {
+        InetSocketAddress remote = request.getRemoteSocketAddress();
+        int rejected = manager.admission.check(remote == null ? null : remote.getAddress());
+        if (rejected >= 0) {
+            manager.metrics.rejectedConnections.increment(rejected);
+            sendError(response, AdmissionControl.SC_TOO_MANY_REQUESTS, "Too many connections");
+            return null;
+        }
+        if (!manager.admits(WebSocket.requestedSession(request))) {
+            manager.metrics.rejectedConnections.increment(ServerMetrics.REJECTED_GAME_FULL);
+            sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Full");
+            return null;
+        }
+        return new WebSocket(manager);
+    }
+
+    static void sendError(ServletUpgradeResponse response, int status, String message) {
+        try {
+            response.sendError(status, message);
+        } catch (IOException e) {
+            MobLog.error("Unable to send error response", e);
         }
     }
 
@@ -0,0 +1,117 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of input change events, written by any number of socket threads and drained by the
+ * game thread. Preallocated, so neither side allocates. Each slot's sequence number says whether it is free for
+ * the producer that claims it or ready for the consumer (Dmitry Vyukov's bounded queue algorithm).
+ * <p>
+ * An event is packed into a long:
+ * <pre>
+ * bits  0-31  value, float bits for an axis, 0 or 1 for a button
+ * bits 32-39  axis or button code
+ * bits 40-47  event type
+ * </pre>
+ * If the queue fills up the event is dropped and {@link #takeOverflow()} reports it, so the consumer can
+ * resynchronise by diffing full state instead.
+ */
+final class InputEventQueue {
+
+    static final int TYPE_AXIS = 1;
+    static final int TYPE_BUTTON = 2;
+
+    interface Handler {
+        void onEvent(MobController controller, int type, int code, float value);
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] events;
+    private final MobController[] owners;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private volatile boolean overflowed;
+
+    InputEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        events = new long[size];
+        owners = new MobController[size];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    static long axisEvent(int axisCode, float value) {
+        return (long) TYPE_AXIS << 40 | (long) (axisCode & 0xff) << 32 | (Float.floatToRawIntBits(value) & 0xffffffffL);
+    }
+
+    static long buttonEvent(int buttonCode, boolean pressed) {
+        return (long) TYPE_BUTTON << 40 | (long) (buttonCode & 0xff) << 32 | (pressed ? 1 : 0);
+    }
+
+    /**
+     * Called from socket threads.
+     *
+     * @return false if the queue was full and the event was dropped
+     */
+    boolean offer(MobController controller, long event) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) break;
+            } else if (sequence < position) {
+                overflowed = true;
+                return false;
+            }
+        }
+        events[slot] = event;
+        owners[slot] = controller;
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Called from the game thread. Hands every queued event to the handler.
+     *
+     * @return the number of events drained
+     */
+    int drain(Handler handler) {
+        int count = 0;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                return count;
+            }
+            long event = events[slot];
+            MobController controller = owners[slot];
+            owners[slot] = null;
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+            count++;
+
+            int type = (int) (event >>> 40) & 0xff;
+            int code = (int) (event >>> 32) & 0xff;
+            float value = type == TYPE_AXIS ? Float.intBitsToFloat((int) event) : (int) event;
+            handler.onEvent(controller, type, code, value);
+        }
+    }
+
+    /**
+     * @return true if any events were dropped since the last call
+     */
+    boolean takeOverflow() {
+        if (overflowed) {
+            overflowed = false;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,168 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the changes a manager applies to its controllers to a file, see
+ * {@link MobControllerManager#startRecording(Path)}. Everything happens on the game thread, in pollState, so the
+ * file says exactly what the game saw and on which frame, whatever order the network delivered it in.
+ * <p>
+ * Records go into a direct buffer that's written to the file channel when it fills up, so recording costs a few
+ * bytes of copying per change and an occasional write. Little-endian, varints are unsigned LEB128:
+ * <pre>
+ * header   "MCIR", version byte, event driven byte
+ * FRAME    type, varint frames since the previous FRAME, varint microseconds since the previous FRAME
+ * CONNECT  type, varint id, byte length, UTF-8 name
+ * DISCONNECT type, varint id
+ * BUTTON_UP / BUTTON_DOWN  type, varint id, byte button
+ * AXIS     type, varint id, byte axis, float value
+ * </pre>
+ * A FRAME comes before the changes of every frame that has any, so quiet frames cost nothing. Records before the
+ * first FRAME are the controllers that were already connected when recording started. Time is counted from then.
+ */
+final class InputRecorder {
+
+    static final int MAGIC = 'M' | 'C' << 8 | 'I' << 16 | 'R' << 24;
+    static final int VERSION = 1;
+
+    static final int FRAME = 1,
+            CONNECT = 2,
+            DISCONNECT = 3,
+            BUTTON_UP = 4,
+            BUTTON_DOWN = 5,
+            AXIS = 6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Longer than any one record.
+     */
+    private static final int MAX_RECORD_LENGTH = 2 + 5 + 5 + 1 + 255;
+
+    private final MobControllerManager manager;
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private int nextId;
+    private long lastFrame;
+    private long lastFrameNanos;
+    private boolean failed;
+
+    InputRecorder(MobControllerManager manager, Path file) throws IOException {
+        this.manager = manager;
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) (manager.isEventDriven() ? 1 : 0));
+        lastFrame = manager.frame;
+        lastFrameNanos = System.nanoTime();
+    }
+
+    void connected(MobController controller) {
+        controller.recordingId = nextId++;
+        if (!begin()) return;
+        buffer.put((byte) CONNECT);
+        putVarint(controller.recordingId);
+        byte[] name = controller.getName().getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(name.length, 255);
+        buffer.put((byte) length);
+        buffer.put(name, 0, length);
+    }
+
+    void disconnected(MobController controller) {
+        if (!begin()) return;
+        buffer.put((byte) DISCONNECT);
+        putVarint(controller.recordingId);
+    }
+
+    void button(MobController controller, int button, boolean pressed) {
+        if (!begin()) return;
+        buffer.put((byte) (pressed ? BUTTON_DOWN : BUTTON_UP));
+        putVarint(controller.recordingId);
+        buffer.put((byte) button);
+    }
+
+    void axis(MobController controller, int axis, float value) {
+        if (!begin()) return;
+        buffer.put((byte) AXIS);
+        putVarint(controller.recordingId);
+        buffer.put((byte) axis);
+        buffer.putFloat(value);
+    }
+
+    /**
+     * Makes room for a record, after a FRAME record if this is the first change of the frame.
+     *
+     * @return false if the file can't be written
+     */
+    private boolean begin() {
+        if (failed) return false;
+        if (buffer.remaining() < MAX_RECORD_LENGTH * 2) {
+            flush();
+            if (failed) return false;
+        }
+        long frame = manager.frame;
+        if (frame != lastFrame) {
+            long nanos = manager.frameNanos;
+            buffer.put((byte) FRAME);
+            putVarint(frame - lastFrame);
+            putVarint(Math.max(0, (nanos - lastFrameNanos) / 1000));
+            lastFrame = frame;
+            lastFrameNanos = nanos;
+        }
+        return true;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * A game shouldn't stop because its recording did, so failures are reported and recording stops.
+     */
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            MobLog.error(null, null, "Recording to {} failed, stopped recording", file, e);
+            failed = true;
+        }
+        buffer.clear();
+    }
+
+    void close() {
+        if (!failed) {
+            flush();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            MobLog.error("Closing recording failed", e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.electronstudio.mobcontrol.MobController.SDL_CONTROLLER_AXIS_MAX;
+
+/**
+ * Plays back a file from {@link MobControllerManager#startRecording(Path)} into a manager of its own, which has
+ * no server. Use {@link #getManager()} in place of the live one and call {@link #pollState()} instead of
+ * its pollState. Listeners then see the recorded changes on the same frames as they were first seen, as long as
+ * the game doesn't depend on anything else that varies, e.g. the wall clock or an unseeded Random.
+ * <p>
+ * At speed 0, one recorded frame is played per call, as fast as the game can go, which also makes it a cheap
+ * source of input for soak tests and benchmarks. Otherwise frames are played when they're due by the clock,
+ * at 1 the speed they were recorded at, at 2 twice as fast, and so on.
+ * <p>
+ * The file is memory mapped, so it's read without copying.
+ */
+public class InputReplay {
+
+    private final MobControllerManager manager = MobControllerManager.headless();
+    private final MappedByteBuffer in;
+    private final float[] axisValues = new float[SDL_CONTROLLER_AXIS_MAX];
+    private MobController[] controllers = new MobController[16];
+
+    private float speed = 1;
+    /**
+     * Recorded frame and time of the next records to play.
+     */
+    private long nextFrame;
+    private long nextMicros;
+    private long startNanos;
+
+    public InputReplay(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < 6 || in.getInt() != InputRecorder.MAGIC) {
+            throw new IOException(file + " is not an input recording");
+        }
+        int version = in.get();
+        if (version != InputRecorder.VERSION) {
+            throw new IOException(file + " is recording version " + version + ", expected "
+                    + InputRecorder.VERSION);
+        }
+        manager.setEventDriven(in.get() != 0);
+    }
+
+    public MobControllerManager getManager() {
+        return manager;
+    }
+
+    /**
+     * @param speed 1 for the original speed, 0 for one recorded frame per call
+     */
+    public void setSpeed(float speed) {
+        this.speed = speed;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Feeds the manager everything that's due and calls its pollState.
+     *
+     * @return false once the whole recording has been played
+     */
+    public boolean pollState() {
+        long frame = manager.frame + 1;
+        if (speed <= 0) {
+            play(frame, Long.MAX_VALUE);
+        } else {
+            long now = System.nanoTime();
+            if (startNanos == 0) {
+                startNanos = now;
+            }
+            play(Long.MAX_VALUE, (long) (TimeUnit.NANOSECONDS.toMicros(now - startNanos) * (double) speed));
+        }
+        manager.pollState();
+        return in.hasRemaining();
+    }
+
+    /**
+     * Plays records up to the given recorded frame or time, whichever comes first.
+     */
+    private void play(long untilFrame, long untilMicros) {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int type = in.get();
+            if (type == InputRecorder.FRAME) {
+                nextFrame += InputRecorder.getVarint(in);
+                nextMicros += InputRecorder.getVarint(in);
+                continue;
+            }
+            if (nextFrame > untilFrame || nextMicros > untilMicros) {
+                in.position(start);
+                return;
+            }
+            int id = (int) InputRecorder.getVarint(in);
+            switch (type) {
+                case InputRecorder.CONNECT:
+                    byte[] name = new byte[in.get() & 0xff];
+                    in.get(name);
+                    connect(id, new String(name, StandardCharsets.UTF_8));
+                    break;
+                case InputRecorder.DISCONNECT:
+                    manager.disConnectionQueue.add(controllers[id]);
+                    controllers[id] = null;
+                    break;
+                case InputRecorder.BUTTON_UP:
+                case InputRecorder.BUTTON_DOWN:
+                    int button = 1 << in.get();
+                    int buttonValues = type == InputRecorder.BUTTON_DOWN ? button : 0;
+                    controllers[id].getWebSocket().padUpdate(button, buttonValues, 0, axisValues, System.nanoTime());
+                    break;
+                case InputRecorder.AXIS:
+                    int axis = in.get();
+                    axisValues[axis] = in.getFloat();
+                    controllers[id].getWebSocket().padUpdate(0, 0, 1 << axis, axisValues, System.nanoTime());
+                    break;
+                default:
+                    throw new IllegalStateException("Bad record type " + type + " at " + start);
+            }
+        }
+    }
+
+    private void connect(int id, String name) {
+        if (id >= controllers.length) {
+            controllers = Arrays.copyOf(controllers, Math.max(id + 1, controllers.length * 2));
+        }
+        controllers[id] = new WebSocket(manager).connectLocal(name);
+    }
+
+    /**
+     * @return true once every record has been played
+     */
+    public boolean isFinished() {
+        return !in.hasRemaining();
+    }
+
+    public void close() {
+        manager.close();
+    }
+}
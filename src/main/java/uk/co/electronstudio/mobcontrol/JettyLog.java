@@ -0,0 +1,96 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.util.log.AbstractLogger;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Sends Jetty's logging through {@link MobLog}, so the server's threads don't write to stderr themselves.
+ * Jetty's debug logging is enabled along with MobLog's DEBUG level.
+ */
+final class JettyLog extends AbstractLogger {
+
+    private final String name;
+
+    JettyLog() {
+        this("org.eclipse.jetty");
+    }
+
+    private JettyLog(String name) {
+        this.name = name;
+    }
+
+    @Override
+    protected Logger newLogger(String fullname) {
+        return new JettyLog(fullname);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void warn(String msg, Object... args) {
+        if (MobLog.isEnabled(MobLog.WARN)) MobLog.log(MobLog.WARN, null, null, msg, null, null, args, null);
+    }
+
+    @Override
+    public void warn(Throwable thrown) {
+        warn("", thrown);
+    }
+
+    @Override
+    public void warn(String msg, Throwable thrown) {
+        if (MobLog.isEnabled(MobLog.WARN)) MobLog.log(MobLog.WARN, null, null, msg, null, null, null, thrown);
+    }
+
+    @Override
+    public void info(String msg, Object... args) {
+        if (MobLog.isEnabled(MobLog.INFO)) MobLog.log(MobLog.INFO, null, null, msg, null, null, args, null);
+    }
+
+    @Override
+    public void info(Throwable thrown) {
+        info("", thrown);
+    }
+
+    @Override
+    public void info(String msg, Throwable thrown) {
+        if (MobLog.isEnabled(MobLog.INFO)) MobLog.log(MobLog.INFO, null, null, msg, null, null, null, thrown);
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return MobLog.isEnabled(MobLog.DEBUG);
+    }
+
+    /**
+     * Ignored, use {@link MobLog#setLevel(int)}.
+     */
+    @Override
+    public void setDebugEnabled(boolean enabled) {
+    }
+
+    @Override
+    public void debug(String msg, Object... args) {
+        if (isDebugEnabled()) MobLog.log(MobLog.DEBUG, null, null, msg, null, null, args, null);
+    }
+
+    @Override
+    public void debug(Throwable thrown) {
+        debug("", thrown);
+    }
+
+    @Override
+    public void debug(String msg, Throwable thrown) {
+        if (isDebugEnabled()) MobLog.log(MobLog.DEBUG, null, null, msg, null, null, null, thrown);
+    }
+
+    /**
+     * Jetty's expected exceptions, e.g. a phone dropping its connection mid-write.
+     */
+    @Override
+    public void ignore(Throwable thrown) {
+        if (isDebugEnabled()) MobLog.log(MobLog.DEBUG, null, null, "Ignored", null, null, null, thrown);
+    }
+}
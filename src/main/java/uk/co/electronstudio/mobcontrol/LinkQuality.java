@@ -0,0 +1,75 @@
+package uk.co.electronstudio.mobcontrol;
+
+/**
+ * Round trip time, jitter and clock offset of one connection, estimated from the ping/pong exchange.
+ * RTT is smoothed the same way TCP does (RFC 6298). The clock offset uses the NTP clock filter: of the last few
+ * samples, the one with the smallest round trip is trusted most, as it had the least room for asymmetric delay.
+ * <p>
+ * Updated by the socket thread, read by anyone.
+ */
+final class LinkQuality {
+    private static final int FILTER_SIZE = 8;
+
+    private final double[] offsetSamples = new double[FILTER_SIZE];
+    private final double[] delaySamples = new double[FILTER_SIZE];
+    private int samples;
+
+    private volatile float smoothedRtt = -1;
+    private volatile float rttJitter = 0;
+    private volatile float clockOffset = 0;
+    private volatile boolean synchronised = false;
+
+    /**
+     * @param t0 server clock when the ping was sent, ms
+     * @param t1 client clock when the ping arrived, ms
+     * @param t2 client clock when the pong was sent, ms
+     * @param t3 server clock when the pong arrived, ms
+     * @param rtt measured round trip in ms, minus the time the client spent between t1 and t2
+     */
+    void sample(double t0, double t1, double t2, double t3, double rtt) {
+        if (rtt < 0) rtt = 0;
+        if (smoothedRtt < 0) {
+            smoothedRtt = (float) rtt;
+            rttJitter = (float) (rtt / 2);
+        } else {
+            rttJitter = (float) (0.75 * rttJitter + 0.25 * Math.abs(smoothedRtt - rtt));
+            smoothedRtt = (float) (0.875 * smoothedRtt + 0.125 * rtt);
+        }
+
+        int index = samples++ % FILTER_SIZE;
+        offsetSamples[index] = ((t1 - t0) + (t2 - t3)) / 2;
+        delaySamples[index] = (t3 - t0) - (t2 - t1);
+        int best = 0;
+        int count = Math.min(samples, FILTER_SIZE);
+        for (int i = 1; i < count; i++) {
+            if (delaySamples[i] < delaySamples[best]) best = i;
+        }
+        clockOffset = (float) offsetSamples[best];
+        synchronised = true;
+    }
+
+    /**
+     * Smoothed round trip time in ms, or -1 if not measured yet.
+     */
+    float getRoundTripTime() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Mean deviation of the round trip time in ms.
+     */
+    float getJitter() {
+        return rttJitter;
+    }
+
+    /**
+     * Milliseconds to add to the server clock to get the client clock.
+     */
+    float getClockOffset() {
+        return clockOffset;
+    }
+
+    boolean isSynchronised() {
+        return synchronised;
+    }
+}
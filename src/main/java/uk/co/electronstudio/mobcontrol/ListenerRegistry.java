@@ -0,0 +1,172 @@
+package uk.co.electronstudio.mobcontrol;
+
+import com.badlogic.gdx.controllers.Controller;
+import com.badlogic.gdx.controllers.ControllerListener;
+import com.badlogic.gdx.controllers.PovDirection;
+import com.badlogic.gdx.utils.Array;
+
+import static uk.co.electronstudio.mobcontrol.MobControllerManager.*;
+
+/**
+ * Copy-on-write list of listeners. Adding or removing copies the array, firing an event just walks the
+ * current snapshot, so it doesn't allocate and listeners may add or remove listeners (or be added or removed
+ * from another thread) while an event is being delivered. Changes take effect from the next event.
+ * <p>
+ * Each listener has a mask of the event types it wants and optionally a single controller it wants them
+ * from, so e.g. a listener that only handles buttons is never called for the much more frequent axis events.
+ */
+final class ListenerRegistry {
+
+    private static final class Entry {
+        final ControllerListener listener;
+        final Controller controller;
+        final int events;
+
+        Entry(ControllerListener listener, Controller controller, int events) {
+            this.listener = listener;
+            this.controller = controller;
+            this.events = events;
+        }
+
+        boolean wants(Controller controller, int event) {
+            return (events & event) != 0 && (this.controller == null || this.controller == controller);
+        }
+    }
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private volatile Entry[] entries = EMPTY;
+    /**
+     * Union of the event masks of all entries, so events nobody wants cost one read.
+     */
+    private volatile int events;
+    /**
+     * When the first event since the last {@link #takeDispatchNanos()} was delivered, only touched by the game
+     * thread. Timing from there to the end of delivery costs two clock reads a frame rather than two per event.
+     */
+    private long firstDispatchNanos;
+    private boolean dispatched;
+
+    /**
+     * @param controller only deliver events from this controller, or null for all of them
+     * @param events     EVENT_ flags from MobControllerManager
+     */
+    synchronized void add(ControllerListener listener, Controller controller, int events) {
+        Entry[] old = entries;
+        Entry[] updated = new Entry[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, old.length);
+        updated[old.length] = new Entry(listener, controller, events);
+        publish(updated);
+    }
+
+    /**
+     * Removes every registration of the listener.
+     */
+    synchronized void remove(ControllerListener listener) {
+        Entry[] old = entries;
+        int keep = 0;
+        for (Entry entry : old) {
+            if (entry.listener != listener) keep++;
+        }
+        if (keep == old.length) return;
+        Entry[] updated = keep == 0 ? EMPTY : new Entry[keep];
+        int i = 0;
+        for (Entry entry : old) {
+            if (entry.listener != listener) updated[i++] = entry;
+        }
+        publish(updated);
+    }
+
+    synchronized void clear() {
+        publish(EMPTY);
+    }
+
+    private void publish(Entry[] updated) {
+        int mask = 0;
+        for (Entry entry : updated) {
+            mask |= entry.events;
+        }
+        events = mask;
+        entries = updated;
+    }
+
+    boolean wants(int event) {
+        return (events & event) != 0;
+    }
+
+    private void dispatching() {
+        if (!dispatched) {
+            firstDispatchNanos = System.nanoTime();
+            dispatched = true;
+        }
+    }
+
+    /**
+     * Call once the last event of the frame has been delivered.
+     *
+     * @return nanoseconds since the first event delivered since the last call, or -1 if none were delivered
+     */
+    long takeDispatchNanos() {
+        if (!dispatched) return -1;
+        dispatched = false;
+        return System.nanoTime() - firstDispatchNanos;
+    }
+
+    /**
+     * @return a copy of the registered listeners, in the order they were added
+     */
+    Array<ControllerListener> toArray() {
+        Entry[] snapshot = entries;
+        Array<ControllerListener> result = new Array<>(snapshot.length);
+        for (Entry entry : snapshot) {
+            result.add(entry.listener);
+        }
+        return result;
+    }
+
+    void connected(Controller controller) {
+        if (!wants(EVENT_CONNECTION)) return;
+        dispatching();
+        for (Entry entry : entries) {
+            if (entry.wants(controller, EVENT_CONNECTION)) entry.listener.connected(controller);
+        }
+    }
+
+    void disconnected(Controller controller) {
+        if (!wants(EVENT_CONNECTION)) return;
+        dispatching();
+        for (Entry entry : entries) {
+            if (entry.wants(controller, EVENT_CONNECTION)) entry.listener.disconnected(controller);
+        }
+    }
+
+    void axisMoved(Controller controller, int axisCode, float value) {
+        if (!wants(EVENT_AXIS)) return;
+        dispatching();
+        for (Entry entry : entries) {
+            if (entry.wants(controller, EVENT_AXIS)) entry.listener.axisMoved(controller, axisCode, value);
+        }
+    }
+
+    void button(Controller controller, int buttonCode, boolean pressed) {
+        if (!wants(EVENT_BUTTON)) return;
+        dispatching();
+        for (Entry entry : entries) {
+            if (entry.wants(controller, EVENT_BUTTON)) {
+                if (pressed) {
+                    entry.listener.buttonDown(controller, buttonCode);
+                } else {
+                    entry.listener.buttonUp(controller, buttonCode);
+                }
+            }
+        }
+    }
+
+    void povMoved(Controller controller, int povCode, PovDirection value) {
+        if (!wants(EVENT_POV)) return;
+        dispatching();
+        for (Entry entry : entries) {
+            if (entry.wants(controller, EVENT_POV)) entry.listener.povMoved(controller, povCode, value);
+        }
+    }
+}
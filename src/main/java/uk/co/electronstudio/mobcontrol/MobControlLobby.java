@@ -0,0 +1,244 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One server hosting many games at once, e.g. one per TV. Each game is a room with its own
+ * {@link MobControllerManager}, which the game uses exactly as if it had the server to itself.
+ * <p>
+ * Rooms have short codes. Phones join a room by opening {@code /?room=CODE}, see
+ * {@link MobControllerManager#getURI()}, and the client connects to {@code /mobcontrol/CODE}.
+ * All rooms share the lobby's web server, threads and ping scheduler, so an idle room costs little more than
+ * its controllers.
+ */
+public class MobControlLobby {
+
+    static final String ROOM_PARAMETER = "room";
+    /**
+     * Consonants only, so codes don't spell words, and no letters that look like numbers.
+     */
+    private static final String CODE_LETTERS = "BCDFGHJKLMNPQRSTVWXZ";
+    private static final int CODE_LENGTH = 4;
+
+    final HttpServer server;
+    final ScheduledExecutorService scheduler;
+
+    private final ConcurrentHashMap<String, MobControllerManager> rooms = new ConcurrentHashMap<>();
+    /**
+     * Copy of the rooms for iterating every frame without allocating, replaced when rooms open or close.
+     */
+    private volatile MobControllerManager[] roomArray = new MobControllerManager[0];
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile int maxRooms = 1000;
+    private volatile int maxControllersPerRoom = 16;
+
+    public MobControlLobby() throws MalformedURLException, URISyntaxException {
+        this(new ServerConfig());
+    }
+
+    public MobControlLobby(ServerConfig config) throws MalformedURLException, URISyntaxException {
+        scheduler = MobControllerManager.createScheduler(config.threadPriority);
+        server = new HttpServer(new Servlet(this), config);
+        if (config.autoStart) {
+            server.start();
+        }
+    }
+
+    /**
+     * See {@link HttpServer#startAsync()}.
+     */
+    public CompletableFuture<URI> startAsync() {
+        return server.startAsync();
+    }
+
+    /**
+     * Opens a room with a new code. Call this from the game thread, or at least not from several threads at once
+     * for the same game.
+     *
+     * @return the room, or null if there are already the maximum number of rooms
+     */
+    public synchronized MobControllerManager createRoom() {
+        if (rooms.size() >= maxRooms) {
+            return null;
+        }
+        // Rooms are only added and removed under this lock, so a free code stays free until we add it. The manager
+        // registers itself with the metrics, so it's only made once the code is known to be free.
+        String code;
+        do {
+            code = newCode();
+        } while (rooms.containsKey(code));
+        MobControllerManager room = new MobControllerManager(this, code, maxControllersPerRoom);
+        rooms.put(code, room);
+        MobControllerManager[] array = Arrays.copyOf(roomArray, roomArray.length + 1);
+        array[array.length - 1] = room;
+        roomArray = array;
+        MobLog.info("Opened room {}", code);
+        return room;
+    }
+
+    private String newCode() {
+        char[] code = new char[CODE_LENGTH];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = CODE_LETTERS.charAt(random.nextInt(CODE_LETTERS.length()));
+        }
+        return new String(code);
+    }
+
+    /**
+     * @param code case doesn't matter
+     * @return the open room with this code, or null
+     */
+    public MobControllerManager getRoom(String code) {
+        return code == null ? null : rooms.get(code.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Called by {@link MobControllerManager#close()}.
+     */
+    synchronized void remove(MobControllerManager room) {
+        if (!rooms.remove(room.getRoomCode(), room)) {
+            return;
+        }
+        MobControllerManager[] old = roomArray;
+        MobControllerManager[] array = new MobControllerManager[old.length - 1];
+        int j = 0;
+        for (MobControllerManager r : old) {
+            if (r != room) {
+                array[j++] = r;
+            }
+        }
+        roomArray = array;
+        MobLog.info("Closed room {}", room.getRoomCode());
+    }
+
+    /**
+     * Calls pollState on every room, for a server that runs all its games on one thread.
+     */
+    public void pollState() {
+        MobControllerManager[] array = roomArray;
+        for (int i = 0; i < array.length; i++) {
+            array[i].pollState();
+        }
+    }
+
+    /**
+     * @return a snapshot of the open rooms
+     */
+    public MobControllerManager[] getRooms() {
+        return roomArray.clone();
+    }
+
+    public int getRoomCount() {
+        return roomArray.length;
+    }
+
+    public void setMaxRooms(int maxRooms) {
+        this.maxRooms = maxRooms;
+    }
+
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    /**
+     * The player limit for rooms created from now on, 0 for no limit. A room's own limit can be changed with
+     * {@link MobControllerManager#setMaxControllers(int)}.
+     */
+    public void setMaxControllersPerRoom(int maxControllersPerRoom) {
+        this.maxControllersPerRoom = maxControllersPerRoom;
+    }
+
+    public int getMaxControllersPerRoom() {
+        return maxControllersPerRoom;
+    }
+
+    /**
+     * See {@link HttpServer#addPadLayout(String, byte[], byte[])}.
+     */
+    public int addPadLayout(String name, byte[] sectionPng, byte[] graphicSvg) throws IOException {
+        return server.addPadLayout(name, sectionPng, graphicSvg);
+    }
+
+    /**
+     * @return null if the server isn't running
+     */
+    public URI getURI() {
+        return server.getURI();
+    }
+
+    /**
+     * Counters and timings of every room together.
+     */
+    public ServerMetrics getMetrics() {
+        return server.metrics;
+    }
+
+    /**
+     * Closes every room and stops the server.
+     */
+    public void close() {
+        for (MobControllerManager room : getRooms()) {
+            room.close();
+        }
+        server.stop();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Creates each socket with the room named by the end of its path, /mobcontrol/CODE.
+     */
+    static class Servlet extends WebSocketServlet {
+        private static final long serialVersionUID = 1L;
+
+        private final MobControlLobby lobby;
+
+        Servlet(MobControlLobby lobby) {
+            this.lobby = lobby;
+        }
+
+        @Override
+        public void configure(WebSocketServletFactory factory) {
+            factory.setCreator(this::create);
+        }
+
+        private WebSocket create(ServletUpgradeRequest request, ServletUpgradeResponse response) {
+            MobControllerManager room = lobby.getRoom(roomCode(request.getRequestPath()));
+            if (room == null) {
+                lobby.server.metrics.rejectedConnections.increment(ServerMetrics.REJECTED_NO_ROOM);
+                HttpServer.sendError(response, HttpServletResponse.SC_NOT_FOUND, "No such room");
+                return null;
+            }
+            return HttpServer.create(room, request, response);
+        }
+
+        /**
+         * @param path e.g. /mobcontrol/ABCD
+         */
+        static String roomCode(String path) {
+            if (path == null || !path.startsWith(HttpServer.SOCKET_PATH)) {
+                return null;
+            }
+            String code = path.substring(HttpServer.SOCKET_PATH.length());
+            if (code.endsWith("/")) {
+                code = code.substring(0, code.length() - 1);
+            }
+            return code.isEmpty() || code.indexOf('/') >= 0 ? null : code;
+        }
+    }
+}
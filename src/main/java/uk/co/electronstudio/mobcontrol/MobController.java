@@ -4,7 +4,6 @@ package uk.co.electronstudio.mobcontrol;
 import com.badlogic.gdx.controllers.ControllerListener;
 import com.badlogic.gdx.controllers.PovDirection;
 import com.badlogic.gdx.math.Vector3;
-import com.badlogic.gdx.utils.Array;
 import uk.co.electronstudio.sdl2gdx.RumbleController;
 
 import java.awt.*;
@@ -51,6 +50,19 @@ public class MobController implements RumbleController {
             SDL_HAT_LEFTUP = (SDL_HAT_LEFT | SDL_HAT_UP),
             SDL_HAT_LEFTDOWN = (SDL_HAT_LEFT | SDL_HAT_DOWN);
 
+    /**
+     * Codes for {@link #getAccelerometer(int)}. The phone only sends motion if the game has asked for it with
+     * {@link MobControllerManager#setMotionRate(int)}.
+     * <p>
+     * ACCELEROMETER is acceleration including gravity, in m/s&sup2;, so a phone lying flat reads (0, 0, 9.8).
+     * GYROSCOPE is the rate of rotation about each axis, in degrees per second.
+     * TILT is rotation about x then y away from lying flat, in degrees, z is always 0.
+     * All use the phone's own axes, x to the right of the screen, y to its top and z out of it.
+     */
+    public static final int ACCELEROMETER = 0,
+            GYROSCOPE = 1,
+            TILT = 2;
+
     public static final String[] buttonNames = {
             "BUTTON_A",
             "BUTTON_B",
@@ -78,21 +90,40 @@ public class MobController implements RumbleController {
     };
 
 
-    private final WebSocket webSocket;
+    /**
+     * Changes if the phone reconnects and resumes its session.
+     */
+    private volatile WebSocket webSocket;
 
     private final MobControllerManager manager;
     private final String name;
-    private final Array<ControllerListener> listeners = new Array<ControllerListener>();
+    private final ListenerRegistry listeners = new ListenerRegistry();
 
 
+    private final float[] axisState;
     private final float[] oldAxisState;
     private final boolean[] oldButtonState;
     private final PovDirection[] oldHatState;
     private final static Vector3 zero = new Vector3(0, 0, 0);
+    private final MotionFilter motionFilter = new MotionFilter();
+
+    /**
+     * Only used by the game thread, in event driven mode.
+     */
+    boolean attached;
+    long lastEventFrame = -1;
+    /**
+     * Identifies the controller in a recording, -1 until it's recorded.
+     */
+    int recordingId = -1;
 
 
 
     public MobController(MobControllerManager manager, WebSocket webSocket) {
+        this(manager, webSocket, webSocket.getRemote().getInetSocketAddress().toString());
+    }
+
+    MobController(MobControllerManager manager, WebSocket webSocket, String name) {
         this.manager = manager;
         this.webSocket = webSocket;
 
@@ -100,9 +131,18 @@ public class MobController implements RumbleController {
         oldHatState = new PovDirection[1];
         oldButtonState = new boolean[SDL_CONTROLLER_BUTTON_MAX];
         oldAxisState = new float[SDL_CONTROLLER_AXIS_MAX];
+        axisState = new float[SDL_CONTROLLER_AXIS_MAX];
+
+        this.name = name;
 
-        name = webSocket.getRemote().getInetSocketAddress().toString();
+    }
+
+    WebSocket getWebSocket() {
+        return webSocket;
+    }
 
+    void rebind(WebSocket webSocket) {
+        this.webSocket = webSocket;
     }
 
     public boolean isConnected() {
@@ -110,62 +150,101 @@ public class MobController implements RumbleController {
     }
 
 
-    void pollState() {
+    void pollState(long nowNanos) {
+        long buttonState = webSocket.state.read(axisState);
+        inputApplied(nowNanos);
+
         for (int i = 0; i < oldAxisState.length; i++) {
-            if (oldAxisState[i] != getAxis(i)) {
-                for (ControllerListener listener : listeners) {
-                    listener.axisMoved(this, i, getAxis(i));
-                }
-                manager.axisChanged(this, i, getAxis(i));
+            applyAxis(i, axisState[i]);
+        }
+
+        for (int i = 0; i < oldButtonState.length; i++) {
+            applyButton(i, (buttonState & (1L << i)) != 0);
+        }
+
+        applyPov();
+    }
+
+    void inputApplied(long nowNanos) {
+        long pendingSince = webSocket.state.takePendingSince();
+        if (pendingSince != 0) {
+            webSocket.stats.inputApplied(pendingSince, nowNanos);
+        }
+    }
+
+    void applyAxis(int i, float value) {
+        if (oldAxisState[i] != value) {
+            if (manager.recorder != null) {
+                manager.recorder.axis(this, i, value);
             }
-            oldAxisState[i] = getAxis(i);
+            listeners.axisMoved(this, i, value);
+            manager.axisChanged(this, i, value);
         }
+        oldAxisState[i] = value;
+    }
 
+    void applyButton(int i, boolean pressed) {
+        if (oldButtonState[i] != pressed) {
+            if (manager.recorder != null) {
+                manager.recorder.button(this, i, pressed);
+            }
+            listeners.button(this, i, pressed);
+            manager.buttonChanged(this, i, pressed);
+        }
+        oldButtonState[i] = pressed;
+    }
 
+    /**
+     * Records the state as last applied, as changes from nothing pressed.
+     */
+    void recordState(InputRecorder recorder) {
         for (int i = 0; i < oldButtonState.length; i++) {
-            if (oldButtonState[i] != getButton(i)) {
-                for (ControllerListener listener : listeners) {
-                    if (getButton((i))) {
-                        listener.buttonDown(this, i);
-                    } else {
-                        listener.buttonUp(this, i);
-                    }
-                }
-                manager.buttonChanged(this, i, getButton(i));
+            if (oldButtonState[i]) {
+                recorder.button(this, i, true);
+            }
+        }
+        for (int i = 0; i < oldAxisState.length; i++) {
+            if (oldAxisState[i] != 0) {
+                recorder.axis(this, i, oldAxisState[i]);
             }
-            oldButtonState[i] = getButton(i);
         }
+    }
 
+    void applyPov() {
         for (int i = 0; i < oldHatState.length; i++) {
             if (oldHatState[i] != getPov(i)) {
                 oldHatState[i] = getPov(i);
-                for (ControllerListener listener : listeners) {
-                    listener.povMoved(this, i, getPov(i));
-                }
+                listeners.povMoved(this, i, getPov(i));
                 manager.hatChanged(this, i, getPov(i));
             }
         }
-
     }
 
     @Override
     public void addListener(ControllerListener listener) {
-        listeners.add(listener);
+        listeners.add(listener, null, MobControllerManager.EVENT_ALL);
+    }
+
+    /**
+     * @param events EVENT_ flags from MobControllerManager for the kinds of event the listener wants
+     */
+    public void addListener(ControllerListener listener, int events) {
+        listeners.add(listener, null, events);
     }
 
     @Override
     public void removeListener(ControllerListener listener) {
-        listeners.removeValue(listener, true);
+        listeners.remove(listener);
     }
 
     @Override
     public boolean getButton(int buttonCode) {
-        return webSocket.controllerButtons.get(buttonCode);
+        return webSocket.state.getButton(buttonCode);
     }
 
     @Override
     public float getAxis(int axisCode) {
-        return webSocket.controllerAxis.get(axisCode);
+        return webSocket.state.getAxis(axisCode);
     }
 
     @Override
@@ -195,13 +274,34 @@ public class MobController implements RumbleController {
         return false;
     }
 
+    /**
+     * Call this from the game thread. The returned vector belongs to the controller and is updated in place by
+     * the next call with the same code, copy it if you want to keep it.
+     *
+     * @param accelerometerCode ACCELEROMETER, GYROSCOPE or TILT
+     */
     @Override
     public Vector3 getAccelerometer(int accelerometerCode) {
-        return zero;
+        motionFilter.update(webSocket.motion);
+        switch (accelerometerCode) {
+            case ACCELEROMETER:
+                return motionFilter.acceleration;
+            case GYROSCOPE:
+                return motionFilter.rotationRate;
+            case TILT:
+                return motionFilter.tilt;
+            default:
+                return zero.setZero();
+        }
     }
 
+    /**
+     * @param sensitivity 0 to 1, how quickly the values from getAccelerometer follow the phone. Lower is smoother
+     *                    but lags more, 1 is no smoothing. The default is 0.8.
+     */
     @Override
     public void setAccelerometerSensitivity(float sensitivity) {
+        motionFilter.setSensitivity(sensitivity);
     }
 
     @Override
@@ -232,11 +332,44 @@ public class MobController implements RumbleController {
         return webSocket.playerName;
     }
 
+    /**
+     * Smoothed round trip time to the phone in milliseconds, or -1 if it hasn't been measured yet.
+     * Half of this is a reasonable guess at how late this player's input arrives.
+     */
+    public float getRoundTripTime() {
+        return webSocket.linkQuality.getRoundTripTime();
+    }
+
+    /**
+     * Mean deviation of the round trip time in milliseconds.
+     */
+    public float getRoundTripJitter() {
+        return webSocket.linkQuality.getJitter();
+    }
+
+    /**
+     * Estimated milliseconds to add to the server clock (System.currentTimeMillis()) to get the phone's clock,
+     * or 0 if not known yet.
+     */
+    public float getClockOffset() {
+        return webSocket.linkQuality.getClockOffset();
+    }
+
+    /**
+     * Input latency, message rate and dropped message statistics, for spotting laggy phones.
+     */
+    public ControllerStats getStats() {
+        return webSocket.stats;
+    }
+
     /**
      * Vibrate the controller using the new rumble API
      * This will return false if the controller doesn't support vibration or if SDL was unable to start
      * vibration (maybe the controller doesn't support left/right vibration, maybe it was unplugged in the
      * middle of trying, etc...)
+     * <p>
+     * The phone is told on the next {@link MobControllerManager#pollState()}. Only the last rumble requested
+     * before then is sent.
      *
      * @param leftMagnitude  The speed for the left motor to vibrate (this should be between 0 and 1)
      * @param rightMagnitude The speed for the right motor to vibrate (this should be between 0 and 1)
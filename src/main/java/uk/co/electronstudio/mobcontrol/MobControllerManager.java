@@ -5,12 +5,21 @@ import com.badlogic.gdx.controllers.Controller;
 import com.badlogic.gdx.controllers.ControllerListener;
 import com.badlogic.gdx.controllers.PovDirection;
 import com.badlogic.gdx.utils.Array;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 
 /**
@@ -21,33 +30,219 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class MobControllerManager {
 
+    /**
+     * Event types for {@link #addListener(ControllerListener, int)}.
+     */
+    public static final int EVENT_CONNECTION = 1,
+            EVENT_BUTTON = 2,
+            EVENT_AXIS = 4,
+            EVENT_POV = 8,
+            EVENT_ALL = EVENT_CONNECTION | EVENT_BUTTON | EVENT_AXIS | EVENT_POV;
+
     private final Array<Controller> controllers = new Array<>();
-    private final Array<ControllerListener> listeners = new Array<>();
+    /**
+     * Copy of the controllers for other threads, replaced by the game thread when one connects or disconnects.
+     */
+    private volatile MobController[] controllerArray = new MobController[0];
+    private final ListenerRegistry listeners = new ListenerRegistry();
     ConcurrentLinkedQueue<MobController> connectionQueue = new ConcurrentLinkedQueue<>();
     ConcurrentLinkedQueue<MobController> disConnectionQueue = new ConcurrentLinkedQueue<>();
+    final ScheduledExecutorService scheduler;
+
+    static final int EVENT_QUEUE_CAPACITY = 4096;
+    /**
+     * Events queued per player in a room. Rooms are small and there are many of them, and the queue overflowing
+     * only costs a full comparison for one frame.
+     */
+    static final int ROOM_EVENT_QUEUE_PER_CONTROLLER = 64;
+    final InputEventQueue eventQueue;
+    private volatile boolean eventDriven = false;
+    private boolean resync = false;
+    /**
+     * Number of calls to pollState so far.
+     */
+    long frame;
+    long frameNanos;
+    /**
+     * Only touched by the game thread.
+     */
+    InputRecorder recorder;
+    private final InputEventQueue.Handler eventHandler = this::applyEvent;
+    private final InputEventQueue.Handler discardHandler = (controller, type, code, value) -> { };
 
-    private final HttpServer server;
+    final HttpServer server;
+    /**
+     * The server's, shared with the other rooms of a lobby.
+     */
+    final ServerMetrics metrics;
+    final AdmissionControl admission;
+    final SessionTable sessions = new SessionTable(this);
+    /**
+     * Set for the rooms of a {@link MobControlLobby}, which share its server and scheduler.
+     */
+    private final MobControlLobby lobby;
+    private final String roomCode;
+    private volatile int maxControllers = 0;
 
     private boolean running = true;
 
+    static final int DEFAULT_MAX_CLIENT_SEND_RATE = 60;
+    private volatile int maxClientSendRate = DEFAULT_MAX_CLIENT_SEND_RATE;
+
+    private volatile int motionRate = 0;
+
+    static final int DEFAULT_MAX_OUTBOUND_BYTES = 64 * 1024;
+    private volatile int maxOutboundBytes = DEFAULT_MAX_OUTBOUND_BYTES;
+
     public MobControllerManager() throws MalformedURLException, URISyntaxException {
-        WebSocket.mobControllerManager = this;
-        server = new HttpServer();
-        server.start();
+        this(new ServerConfig());
+    }
+
+    /**
+     * @param config port and threading of the web server. The server is started before this returns unless
+     *               {@link ServerConfig#autoStart} is off.
+     */
+    public MobControllerManager(ServerConfig config) throws MalformedURLException, URISyntaxException {
+        this(config, createScheduler(config.threadPriority));
+        if (config.autoStart) {
+            server.start();
+        }
     }
 
+    /**
+     * @param config null for a manager with no network
+     */
+    private MobControllerManager(ServerConfig config, ScheduledExecutorService scheduler)
+            throws MalformedURLException, URISyntaxException {
+        this.scheduler = scheduler;
+        lobby = null;
+        roomCode = null;
+        eventQueue = new InputEventQueue(EVENT_QUEUE_CAPACITY);
+        server = config == null ? null : new HttpServer(this, config);
+        metrics = server == null ? new ServerMetrics() : server.metrics;
+        admission = server == null ? new AdmissionControl(new ServerConfig()) : server.admission;
+        metrics.add(this);
+    }
+
+    /**
+     * A room of a lobby, which uses the lobby's server and scheduler.
+     *
+     * @param maxControllers 0 for no limit
+     */
+    MobControllerManager(MobControlLobby lobby, String roomCode, int maxControllers) {
+        this.lobby = lobby;
+        this.roomCode = roomCode;
+        this.maxControllers = maxControllers;
+        scheduler = lobby.scheduler;
+        server = null;
+        metrics = lobby.server.metrics;
+        admission = lobby.server.admission;
+        metrics.add(this);
+        eventQueue = new InputEventQueue(maxControllers > 0
+                ? Math.min(EVENT_QUEUE_CAPACITY, maxControllers * ROOM_EVENT_QUEUE_PER_CONTROLLER)
+                : EVENT_QUEUE_CAPACITY);
+    }
+
+    static ScheduledExecutorService createScheduler(int threadPriority) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MobControl scheduler");
+            thread.setDaemon(true);
+            thread.setPriority(threadPriority);
+            return thread;
+        });
+    }
+
+    /**
+     * A manager with no network, whose controllers are fed directly, e.g. by benchmarks.
+     */
+    static MobControllerManager headless() {
+        try {
+            return new MobControllerManager(null, createScheduler(Thread.NORM_PRIORITY));
+        } catch (MalformedURLException | URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Starts the server, if it isn't already, and waits until it accepts connections.
+     */
     public void start(){
-        server.start();
+        if (server != null) {
+            server.start();
+        }
         running = true;
     }
 
+    /**
+     * Starts the server, if it isn't already, without waiting. Controllers that were connected before a
+     * {@link #stop()} can rejoin once it completes, as they would after a network drop.
+     * <p>
+     * For a room, this starts the lobby's server.
+     *
+     * @return completes with {@link #getURI()} once the server accepts connections
+     * @see HttpServer#startAsync()
+     */
+    public CompletableFuture<URI> startAsync() {
+        running = true;
+        if (lobby != null) {
+            return lobby.startAsync().thenApply(uri -> getURI());
+        }
+        if (server == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return server.startAsync();
+    }
+
+    /**
+     * Stops the server but keeps its threads, connector and client files, so starting it again is quick.
+     * Use {@link #close()} when finished with the manager.
+     */
     public void stop(){
-        server.stop();
+        if (server != null) {
+            server.stop();
+        }
         running = false;
     }
 
+    /**
+     * For a room, the address of the page that joins it.
+     *
+     * @return null if the server isn't running, or if this manager has no server
+     */
     public URI getURI(){
-        return server.server.getURI();
+        if (lobby != null) {
+            URI lobbyUri = lobby.getURI();
+            return lobbyUri == null ? null : lobbyUri.resolve("/?" + MobControlLobby.ROOM_PARAMETER + "=" + roomCode);
+        }
+        return server == null ? null : server.getURI();
+    }
+
+    /**
+     * @return the code phones use to join, if this is a room of a {@link MobControlLobby}, otherwise null
+     */
+    public String getRoomCode() {
+        return roomCode;
+    }
+
+    /**
+     * Limits how many players may join, including ones whose connection dropped and may come back.
+     * Phones beyond the limit are turned away. 0, the default, means no limit.
+     */
+    public void setMaxControllers(int maxControllers) {
+        this.maxControllers = maxControllers;
+    }
+
+    public int getMaxControllers() {
+        return maxControllers;
+    }
+
+    /**
+     * Checked before the connection is upgraded, so a full game turns phones away cheaply. A phone getting its
+     * old controller back doesn't need a free place.
+     */
+    boolean admits(String sessionToken) {
+        int max = maxControllers;
+        return max <= 0 || sessions.size() < max || (sessionToken != null && sessions.contains(sessionToken));
     }
 
     public String[] getHostAddresses() {
@@ -73,41 +268,149 @@ public class MobControllerManager {
      * these things to happen on your main thread and not behind your back.
      */
     public void pollState() {
+        frame++;
+        frameNanos = System.nanoTime();
+
         MobController c;
         while ((c = connectionQueue.poll()) != null) {
             connected(c);
         }
 
+        if (eventDriven) {
+            eventQueue.drain(eventHandler);
+            if (eventQueue.takeOverflow() || resync) {
+                resync = false;
+                pollAllControllers();
+            }
+        } else {
+            eventQueue.drain(discardHandler);
+        }
+
         MobController d;
         while ((d = disConnectionQueue.poll()) != null) {
             disconnected(d);
         }
 
-        for (Controller controller : controllers) {
-            ((MobController) controller).pollState();
+        if (!eventDriven) {
+            pollAllControllers();
+        }
+
+        long dispatchNanos = listeners.takeDispatchNanos();
+        if (dispatchNanos >= 0) {
+            metrics.listenerDispatch.record(dispatchNanos);
+        }
+
+        flushOutput();
+
+        metrics.pollState.record(System.nanoTime() - frameNanos);
+    }
+
+    private void pollAllControllers() {
+        for (int i = 0; i < controllers.size; i++) {
+            ((MobController) controllers.get(i)).pollState(frameNanos);
+        }
+    }
+
+    /**
+     * Sends rumble requested since the last frame, including by the listeners that just ran.
+     */
+    private void flushOutput() {
+        for (int i = 0; i < controllers.size; i++) {
+            ((MobController) controllers.get(i)).getWebSocket().flushOutput();
+        }
+    }
+
+    private void applyEvent(MobController controller, int type, int code, float value) {
+        if (!controller.attached) {
+            // Its connection may have been queued after we last looked.
+            MobController c;
+            while ((c = connectionQueue.poll()) != null) {
+                connected(c);
+            }
+            if (!controller.attached) return;
+        }
+        if (controller.lastEventFrame != frame) {
+            controller.lastEventFrame = frame;
+            controller.inputApplied(frameNanos);
+        }
+        if (type == InputEventQueue.TYPE_AXIS) {
+            controller.applyAxis(code, value);
+        } else {
+            controller.applyButton(code, value != 0);
+            controller.applyPov();
+        }
+    }
+
+    /**
+     * In event driven mode the socket threads queue every change as it happens, and pollState only fires
+     * listeners for the queued events, rather than comparing the state of every controller every frame.
+     * That makes idle controllers free. If the queue ever overflows, pollState falls back to comparing
+     * everything for that frame, so no change is lost.
+     * Listeners are still only called from pollState in either mode.
+     */
+    public void setEventDriven(boolean eventDriven) {
+        if (eventDriven && !this.eventDriven) {
+            resync = true;
         }
+        this.eventDriven = eventDriven;
     }
 
+    public boolean isEventDriven() {
+        return eventDriven;
+    }
 
+    /**
+     * Only use this from the game thread, the array changes in pollState.
+     */
     public Array<Controller> getControllers() {
         return controllers;
     }
 
+    /**
+     * The controllers as of the last pollState, for reading from other threads. Don't modify it.
+     */
+    MobController[] getControllerArray() {
+        return controllerArray;
+    }
 
+
+    /**
+     * Listeners may be added and removed from any thread, including from inside a listener callback.
+     * They are always called from pollState.
+     */
     public void addListener(ControllerListener listener) {
-        listeners.add(listener);
+        addListener(listener, null, EVENT_ALL);
+    }
+
+    /**
+     * @param events EVENT_ flags for the kinds of event the listener wants, e.g. EVENT_CONNECTION | EVENT_BUTTON.
+     *               Listeners that don't ask for axis events aren't called for them at all.
+     */
+    public void addListener(ControllerListener listener, int events) {
+        addListener(listener, null, events);
+    }
+
+    /**
+     * @param controller only deliver events from this controller, or null for all controllers
+     * @param events     EVENT_ flags for the kinds of event the listener wants
+     */
+    public void addListener(ControllerListener listener, Controller controller, int events) {
+        listeners.add(listener, controller, events);
     }
 
     public void addListenerAndRunForConnectedControllers(ControllerListener listener) {
-        for (Controller controller : controllers) {
-            listener.connected(controller);
+        for (int i = 0; i < controllers.size; i++) {
+            listener.connected(controllers.get(i));
         }
         addListener(listener);
     }
 
 
+    /**
+     * Removes every registration of the listener.
+     */
     public void removeListener(ControllerListener listener) {
-        listeners.removeValue(listener, true);
+        listeners.remove(listener);
     }
 
 
@@ -116,55 +419,222 @@ public class MobControllerManager {
     }
 
     private void connected(MobController controller) {
-        System.out.println("connected " + controller);
+        MobLog.info(controller, null, "Connected");
         controllers.add(controller);
-        for (ControllerListener listener : listeners) {
-            listener.connected(controller);
+        MobController[] array = Arrays.copyOf(controllerArray, controllerArray.length + 1);
+        array[array.length - 1] = controller;
+        controllerArray = array;
+        controller.attached = true;
+        if (recorder != null) {
+            recorder.connected(controller);
         }
+        listeners.connected(controller);
     }
 
     private void disconnected(MobController controller) {
-        System.out.println("disconnected " + controller);
-        controllers.removeValue(controller, true);
-        for (ControllerListener listener : listeners) {
-            listener.disconnected(controller);
+        MobLog.info(controller, null, "Disconnected");
+        if (controllers.removeValue(controller, true)) {
+            MobController[] old = controllerArray;
+            MobController[] array = new MobController[old.length - 1];
+            int j = 0;
+            for (MobController c : old) {
+                if (c != controller) {
+                    array[j++] = c;
+                }
+            }
+            controllerArray = array;
         }
+        controller.attached = false;
+        if (recorder != null) {
+            recorder.disconnected(controller);
+        }
+        listeners.disconnected(controller);
         controller.close();
     }
 
     void axisChanged(MobController controller, int axisCode, float value) {
-        for (ControllerListener listener : listeners) {
-            listener.axisMoved(controller, axisCode, value);
-        }
+        listeners.axisMoved(controller, axisCode, value);
     }
 
     void buttonChanged(MobController controller, int buttonCode, boolean value) {
-        for (ControllerListener listener : listeners) {
-            if (value) {
-                listener.buttonDown(controller, buttonCode);
-            } else {
-                listener.buttonUp(controller, buttonCode);
-            }
-        }
+        listeners.button(controller, buttonCode, value);
     }
 
     void hatChanged(MobController controller, int hatCode, PovDirection value) {
-        for (ControllerListener listener : listeners) {
-            listener.povMoved(controller, hatCode, value);
+        listeners.povMoved(controller, hatCode, value);
+    }
+
+
+    /**
+     * Sets how many pad updates per second each phone may send, and tells the connected ones.
+     * Lower rates save Wi-Fi bandwidth when there are lots of players, at the cost of smoothness of analogue
+     * input. Button presses are always sent straight away. 0 means unlimited.
+     */
+    public void setMaxClientSendRate(int hz) {
+        maxClientSendRate = hz;
+        for (MobController controller : controllerArray) {
+            controller.getWebSocket().sendPacing(hz);
+        }
+    }
+
+    public int getMaxClientSendRate() {
+        return maxClientSendRate;
+    }
+
+    /**
+     * Asks phones to stream their accelerometer and gyroscope at this many samples per second, for
+     * {@link MobController#getAccelerometer(int)}. Samples are sent in batches at the pad update rate, see
+     * {@link #setMaxClientSendRate(int)}. Phones may deliver fewer than asked for, most manage 60.
+     * 0, the default, turns motion off, which saves a lot of bandwidth, so only turn it on for games that use it.
+     */
+    public void setMotionRate(int hz) {
+        motionRate = hz;
+        for (MobController controller : controllerArray) {
+            controller.getWebSocket().sendMotionRate(hz);
         }
     }
 
+    public int getMotionRate() {
+        return motionRate;
+    }
+
+    /**
+     * How long a phone whose connection drops has to reconnect and get the same controller back. Until then the
+     * controller stays in getControllers() with nothing pressed, and isConnected() returns false.
+     * 0 disconnects controllers as soon as their connection closes. The default is 10 seconds.
+     */
+    public void setReconnectGracePeriod(int ms) {
+        sessions.setGraceMs(ms);
+    }
 
+    public int getReconnectGracePeriod() {
+        return sessions.getGraceMs();
+    }
+
+    /**
+     * Sends a message to every connected phone, e.g. the score or a "you died" screen.
+     * The message is encoded once and the same bytes are written to every phone, so this is cheap to call
+     * every frame. It doesn't wait for the network.
+     * The client passes it to its subscribers as (header, data).
+     *
+     * @param header name of the message, a plain identifier
+     * @param data   JSON value, e.g. {@code "{ \"score\": 10 }"}
+     */
+    public void broadcast(String header, String data) {
+        broadcast(header, data, controllers);
+    }
+
+    /**
+     * Sends a message to some of the phones. See {@link #broadcast(String, String)}.
+     *
+     * @param to MobControllers from this manager
+     */
+    public void broadcast(String header, String data, Array<? extends Controller> to) {
+        ByteBuffer message = WebSocket.encodeMessage(header, data);
+        int limit = maxOutboundBytes;
+        for (int i = 0; i < to.size; i++) {
+            ((MobController) to.get(i)).getWebSocket().sendShared(message, limit);
+        }
+    }
+
+    /**
+     * Limits how many bytes of broadcast messages may be waiting to go to any one phone. Messages over the
+     * limit are dropped for that phone, so a phone with a bad connection can't use up memory.
+     * See {@link ControllerStats#getDroppedOutboundMessages()}.
+     */
+    public void setMaxOutboundBytes(int bytes) {
+        maxOutboundBytes = bytes;
+    }
+
+    public int getMaxOutboundBytes() {
+        return maxOutboundBytes;
+    }
+
+    /**
+     * Adds a pad layout that phones can choose on their settings page, see
+     * {@link HttpServer#addPadLayout(String, byte[], byte[])}. For a room, the layout is added to the whole lobby.
+     */
+    public int addPadLayout(String name, byte[] sectionPng, byte[] graphicSvg) throws IOException {
+        HttpServer target = lobby != null ? lobby.server : server;
+        if (target == null) {
+            throw new IllegalStateException("No server to serve the layout");
+        }
+        return target.addPadLayout(name, sectionPng, graphicSvg);
+    }
+
+    /**
+     * Starts writing every change that pollState applies to a file, for replaying with {@link InputReplay}.
+     * Controllers that are already connected are recorded as connecting with their current state.
+     * Call this and stopRecording from the game thread. Recording a file that's already being recorded replaces it.
+     */
+    public void startRecording(Path file) throws IOException {
+        stopRecording();
+        recorder = new InputRecorder(this, file);
+        for (int i = 0; i < controllers.size; i++) {
+            MobController controller = (MobController) controllers.get(i);
+            recorder.connected(controller);
+            controller.recordState(recorder);
+        }
+    }
+
+    public void stopRecording() {
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+    }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    /**
+     * Combined statistics of all connected controllers. This is a new snapshot every time it's called.
+     * May be called from a monitoring thread.
+     */
+    public ControllerStats getStats() {
+        ControllerStats total = new ControllerStats();
+        for (MobController controller : controllerArray) {
+            total.add(controller.getStats());
+        }
+        return total;
+    }
+
+    /**
+     * Counters and timings of the whole server, which for a room includes the lobby's other rooms.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return a copy of the listeners; changing it doesn't affect the manager
+     */
     public Array<ControllerListener> getListeners() {
-        return listeners;
+        return listeners.toArray();
     }
 
+    /**
+     * Closing a room disconnects its phones and removes it from the lobby.
+     */
     public void close() {
         running = false;
-        try {
-            server.server.stop();
-        } catch (Exception e) {
-            e.printStackTrace();
+        stopRecording();
+        metrics.remove(this);
+        if (lobby != null) {
+            lobby.remove(this);
+            for (MobController controller : sessions.closeAll()) {
+                Session session = controller.getWebSocket().getSession();
+                if (session != null) {
+                    session.close(StatusCode.SHUTDOWN, "Room closed");
+                }
+            }
+            return;
         }
+        scheduler.shutdownNow();
+        if (server == null) {
+            return;
+        }
+        server.stop();
     }
 }
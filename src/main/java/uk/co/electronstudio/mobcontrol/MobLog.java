@@ -0,0 +1,405 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging for the library and its web server. Socket threads and the game thread only copy the event into a
+ * ring buffer, never touching a stream or a lock, and a background thread formats and writes it. If the ring is
+ * full, because the sink can't keep up, events are dropped rather than making the caller wait, see
+ * {@link #getDropped()}.
+ * <p>
+ * Messages are formatted on the background thread, with each {} replaced by the next argument, so a disabled
+ * level costs one comparison and an enabled one no string building on the caller's thread. Events can carry the
+ * controller and the session they're about, which a {@link Sink} gets as separate fields.
+ * <p>
+ * The default sink writes lines to System.err. Use {@link #setSink(Sink)} to send them to the game's own logging.
+ */
+public final class MobLog {
+
+    public static final int NONE = 0,
+            ERROR = 1,
+            WARN = 2,
+            INFO = 3,
+            DEBUG = 4;
+
+    private static final String[] LEVEL_NAMES = {"NONE", "ERROR", "WARN", "INFO", "DEBUG"};
+
+    static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Characters of a session token shown, enough to follow a phone through the log but useless for taking over
+     * its controller.
+     */
+    static final int SESSION_CHARS = 6;
+
+    /**
+     * Receives events on the writer thread, one at a time.
+     */
+    public interface Sink {
+        /**
+         * @param event only valid until this returns, it's reused for the next one
+         */
+        void log(Event event);
+    }
+
+    /**
+     * One logged event. Fields are set by the caller's thread, formatting happens in the getters.
+     */
+    public static final class Event {
+        int level;
+        long timeMillis;
+        Thread thread;
+        Object controller;
+        String session;
+        String message;
+        Object arg1;
+        Object arg2;
+        Object[] args;
+        Throwable error;
+
+        private final StringBuilder formatted = new StringBuilder(256);
+
+        public int getLevel() {
+            return level;
+        }
+
+        public String getLevelName() {
+            return LEVEL_NAMES[level];
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public String getThreadName() {
+            return thread == null ? "" : thread.getName();
+        }
+
+        /**
+         * @return the controller the event is about, usually a {@link MobController}, or null
+         */
+        public Object getController() {
+            return controller;
+        }
+
+        /**
+         * @return the start of the session token of the phone the event is about, or null
+         */
+        public String getSession() {
+            return session == null || session.length() <= SESSION_CHARS ? session : session.substring(0,
+                    SESSION_CHARS);
+        }
+
+        /**
+         * @return the message with its arguments filled in
+         */
+        public CharSequence getMessage() {
+            formatted.setLength(0);
+            int argument = 0;
+            int start = 0;
+            int brace;
+            while ((brace = message.indexOf("{}", start)) >= 0) {
+                formatted.append(message, start, brace);
+                formatted.append(argument(argument++));
+                start = brace + 2;
+            }
+            formatted.append(message, start, message.length());
+            return formatted;
+        }
+
+        private Object argument(int i) {
+            if (args != null) {
+                return i < args.length ? args[i] : "{}";
+            }
+            return i == 0 ? arg1 : i == 1 ? arg2 : "{}";
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        private void clear() {
+            thread = null;
+            controller = null;
+            session = null;
+            message = null;
+            arg1 = null;
+            arg2 = null;
+            args = null;
+            error = null;
+        }
+    }
+
+    /**
+     * Writes "time LEVEL [thread] controller=... session=... message" lines and stack traces.
+     */
+    public static class StreamSink implements Sink {
+        private final PrintStream out;
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        private final Date date = new Date();
+        private final StringBuilder line = new StringBuilder(256);
+
+        public StreamSink(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void log(Event event) {
+            date.setTime(event.getTimeMillis());
+            line.setLength(0);
+            line.append(timeFormat.format(date)).append(' ').append(event.getLevelName()).append(" [")
+                    .append(event.getThreadName()).append("] ");
+            if (event.getController() != null) {
+                line.append("controller=").append(event.getController()).append(' ');
+            }
+            if (event.getSession() != null) {
+                line.append("session=").append(event.getSession()).append(' ');
+            }
+            line.append(event.getMessage());
+            out.println(line);
+            if (event.getError() != null) {
+                event.getError().printStackTrace(out);
+            }
+        }
+    }
+
+    private static volatile int level = INFO;
+    private static volatile Sink sink = new StreamSink(System.err);
+
+    private static final Event[] ring = new Event[CAPACITY];
+    /**
+     * Vyukov's bounded queue: a slot may be written when its sequence equals the ticket and read when it's one
+     * more, after which it's moved on a lap.
+     */
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Thread writer;
+    /**
+     * Set while the writer thread is parked, or about to park, on an empty ring. Only then do callers unpark it.
+     */
+    private static volatile boolean writerIdle;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+            sequences.set(i, i);
+        }
+    }
+
+    private MobLog() {
+    }
+
+    /**
+     * @param level NONE, ERROR, WARN, INFO or DEBUG. Events less severe than this are ignored. The default is INFO.
+     */
+    public static void setLevel(int level) {
+        MobLog.level = level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(int level) {
+        return level <= MobLog.level;
+    }
+
+    /**
+     * Called on the writer thread, so it must be safe to use from a thread other than the one that set it.
+     */
+    public static void setSink(Sink sink) {
+        MobLog.sink = sink;
+    }
+
+    public static Sink getSink() {
+        return sink;
+    }
+
+    /**
+     * @return events thrown away because the ring was full
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void error(String message, Throwable error) {
+        if (isEnabled(ERROR)) log(ERROR, null, null, message, null, null, null, error);
+    }
+
+    public static void error(Object controller, String message, Throwable error) {
+        if (isEnabled(ERROR)) log(ERROR, controller, null, message, null, null, null, error);
+    }
+
+    public static void error(Object controller, String session, String message, Object arg1, Throwable error) {
+        if (isEnabled(ERROR)) log(ERROR, controller, session, message, arg1, null, null, error);
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(WARN)) log(WARN, null, null, message, null, null, null, null);
+    }
+
+    public static void warn(String message, Object arg1) {
+        if (isEnabled(WARN)) log(WARN, null, null, message, arg1, null, null, null);
+    }
+
+    public static void info(String message) {
+        if (isEnabled(INFO)) log(INFO, null, null, message, null, null, null, null);
+    }
+
+    public static void info(String message, Object arg1) {
+        if (isEnabled(INFO)) log(INFO, null, null, message, arg1, null, null, null);
+    }
+
+    public static void info(String message, Object arg1, Object arg2) {
+        if (isEnabled(INFO)) log(INFO, null, null, message, arg1, arg2, null, null);
+    }
+
+    /**
+     * For more arguments. The array is made even if INFO is disabled, so keep this off hot paths.
+     */
+    public static void info(String message, Object... args) {
+        if (isEnabled(INFO)) log(INFO, null, null, message, null, null, args, null);
+    }
+
+    public static void info(Object controller, String session, String message) {
+        if (isEnabled(INFO)) log(INFO, controller, session, message, null, null, null, null);
+    }
+
+    public static void info(Object controller, String session, String message, Object arg1) {
+        if (isEnabled(INFO)) log(INFO, controller, session, message, arg1, null, null, null);
+    }
+
+    public static void info(Object controller, String session, String message, Object arg1, Object arg2) {
+        if (isEnabled(INFO)) log(INFO, controller, session, message, arg1, arg2, null, null);
+    }
+
+    public static void debug(String message, Object arg1) {
+        if (isEnabled(DEBUG)) log(DEBUG, null, null, message, arg1, null, null, null);
+    }
+
+    public static void debug(Object controller, String session, String message, Object arg1) {
+        if (isEnabled(DEBUG)) log(DEBUG, controller, session, message, arg1, null, null, null);
+    }
+
+    /**
+     * Queues an event for the writer thread, whatever the level. Callers check the level first.
+     *
+     * @param args used instead of arg1 and arg2 if not null
+     */
+    static void log(int level, Object controller, String session, String message, Object arg1, Object arg2,
+                    Object[] args, Throwable error) {
+        long ticket = tail.get();
+        Event event;
+        while (true) {
+            int index = (int) ticket & MASK;
+            long difference = sequences.get(index) - ticket;
+            if (difference == 0) {
+                if (tail.compareAndSet(ticket, ticket + 1)) {
+                    event = ring[index];
+                    break;
+                }
+                ticket = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            } else {
+                ticket = tail.get();
+            }
+        }
+        event.level = level;
+        event.timeMillis = System.currentTimeMillis();
+        event.thread = Thread.currentThread();
+        event.controller = controller;
+        event.session = session;
+        event.message = message == null ? "null" : message;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.args = args;
+        event.error = error;
+        // A volatile write rather than lazySet, so either the writer's last look before parking sees this event
+        // or we see writerIdle.
+        sequences.set((int) ticket & MASK, ticket + 1);
+        Thread thread = writer;
+        if (thread == null) {
+            startWriter();
+        } else if (writerIdle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) return;
+        Thread thread = new Thread(MobLog::write, "MobControl log");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        writer = thread;
+        Runtime.getRuntime().addShutdownHook(new Thread(MobLog::flush, "MobControl log flush"));
+    }
+
+    /**
+     * Sleeps without a timeout while there is nothing to write, so an idle game isn't woken for logging.
+     */
+    private static void write() {
+        while (true) {
+            if (drain()) continue;
+            writerIdle = true;
+            // Another look, in case an event was queued before the caller could see writerIdle.
+            if (!drain()) {
+                LockSupport.park();
+            }
+            writerIdle = false;
+        }
+    }
+
+    /**
+     * Writes everything that's ready. Only called by the writer thread.
+     *
+     * @return false if there was nothing to write
+     */
+    private static boolean drain() {
+        boolean wrote = false;
+        long next = head;
+        while (true) {
+            int index = (int) next & MASK;
+            if (sequences.get(index) != next + 1) {
+                break;
+            }
+            Event event = ring[index];
+            try {
+                sink.log(event);
+            } catch (Throwable t) {
+                System.err.println("Log sink failed: " + t);
+            }
+            event.clear();
+            sequences.lazySet(index, next + CAPACITY);
+            head = ++next;
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    /**
+     * Waits, for up to a second, until everything logged so far has been written.
+     */
+    public static void flush() {
+        Thread thread = writer;
+        if (thread == null) return;
+        long target = tail.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        LockSupport.unpark(thread);
+        while (head < target && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+    }
+}
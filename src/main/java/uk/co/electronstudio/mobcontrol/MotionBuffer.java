@@ -0,0 +1,148 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accelerometer and gyroscope samples from one phone, decoded straight from the binary motion frame into a
+ * preallocated ring buffer. Written by the socket's thread and read by the game thread through
+ * {@link MotionFilter}, neither of which allocates.
+ * <p>
+ * The client only sends motion once the server has asked for it with a rate, see
+ * {@link MobControllerManager#setMotionRate(int)}. It batches samples, so a frame carries several.
+ * All values are little-endian:
+ * <pre>
+ * offset size
+ *      0    1  {@link #TYPE}, which can't be mistaken for the version byte of a pad frame
+ *      1    1  number of samples, 1 to {@link #MAX_SAMPLES_PER_FRAME}
+ *      2    2  time between samples, unsigned, tenths of a millisecond
+ *      4   12  per sample: acceleration including gravity x, y, z, int16, m/s&sup2; * 500,
+ *              then rotation rate about x, y, z, int16, degrees/s * 10
+ * </pre>
+ * Axes are the phone's own: x to the right of the screen, y to its top and z out of it, whichever way the
+ * phone is held.
+ * <p>
+ * A reader that falls more than a ring behind races the writer for the same slot, so each slot has a stamp, the
+ * index of the sample in it, which the writer clears before changing the slot and sets after. The values are
+ * in atomic arrays too: with plain fields the reader's loads could be reordered after its second look at the
+ * stamp, and a half-written sample pass the check.
+ */
+final class MotionBuffer {
+
+    static final int TYPE = 0x81;
+    static final int HEADER_LENGTH = 4;
+    static final int SAMPLE_LENGTH = 12;
+    static final int MAX_SAMPLES_PER_FRAME = 16;
+    /**
+     * Values per sample, acceleration x, y, z then rotation rate x, y, z.
+     */
+    static final int VALUES = 6;
+    /**
+     * Over a second of samples at 200 Hz, more than a game can miss between two frames.
+     */
+    static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final float ACCELERATION_SCALE = 1f / 500f;
+    private static final float ROTATION_SCALE = 1f / 10f;
+
+    private static final long WRITING = -1;
+
+    /**
+     * Float bits.
+     */
+    private final AtomicIntegerArray values = new AtomicIntegerArray(CAPACITY * VALUES);
+    private final AtomicLongArray times = new AtomicLongArray(CAPACITY);
+    private final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+    /**
+     * Number of samples ever written. Publishes the samples before it to the reader.
+     */
+    private volatile long written;
+    /**
+     * Time of the sample last copied by {@link #read(long, float[])}, only used by the reader.
+     */
+    private long readNanos;
+
+    MotionBuffer() {
+        for (int i = 0; i < CAPACITY; i++) {
+            stamps.set(i, WRITING);
+        }
+    }
+
+    /**
+     * @return false if this is not a motion frame
+     */
+    boolean decode(byte[] payload, int offset, int length, long receivedNanos) {
+        if (length < HEADER_LENGTH || (payload[offset] & 0xff) != TYPE) {
+            return false;
+        }
+        int count = payload[offset + 1] & 0xff;
+        if (count == 0 || count > MAX_SAMPLES_PER_FRAME || length < HEADER_LENGTH + count * SAMPLE_LENGTH) {
+            return false;
+        }
+        long intervalNanos = readUnsignedShort(payload, offset + 2) * 100000L;
+        long w = written;
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (w + i) & MASK;
+            int base = slot * VALUES;
+            int p = offset + HEADER_LENGTH + i * SAMPLE_LENGTH;
+            stamps.set(slot, WRITING);
+            for (int v = 0; v < 3; v++) {
+                values.set(base + v, Float.floatToRawIntBits(
+                        (short) readUnsignedShort(payload, p + 2 * v) * ACCELERATION_SCALE));
+                values.set(base + 3 + v, Float.floatToRawIntBits(
+                        (short) readUnsignedShort(payload, p + 6 + 2 * v) * ROTATION_SCALE));
+            }
+            // The last sample was taken just before the frame was sent.
+            times.set(slot, receivedNanos - (count - 1 - i) * intervalNanos);
+            stamps.set(slot, w + i);
+        }
+        written = w + count;
+        return true;
+    }
+
+    long written() {
+        return written;
+    }
+
+    /**
+     * Index of the oldest sample still in the ring, older ones have certainly been overwritten.
+     */
+    long oldestReadable(long written) {
+        return Math.max(0, written - CAPACITY);
+    }
+
+    /**
+     * Copies a sample whose index is below written(), see {@link #readNanos()} for its time.
+     *
+     * @param out {@link #VALUES} floats
+     * @return false if the sample has been, or is being, overwritten by a newer one
+     */
+    boolean read(long index, float[] out) {
+        int slot = (int) index & MASK;
+        if (stamps.get(slot) != index) {
+            return false;
+        }
+        int base = slot * VALUES;
+        for (int v = 0; v < VALUES; v++) {
+            out[v] = Float.intBitsToFloat(values.get(base + v));
+        }
+        long nanos = times.get(slot);
+        if (stamps.get(slot) != index) {
+            return false;
+        }
+        readNanos = nanos;
+        return true;
+    }
+
+    /**
+     * @return System.nanoTime() when the sample last read was taken
+     */
+    long readNanos() {
+        return readNanos;
+    }
+
+    private static int readUnsignedShort(byte[] payload, int index) {
+        return (payload[index] & 0xff) | (payload[index + 1] & 0xff) << 8;
+    }
+}
@@ -0,0 +1,110 @@
+package uk.co.electronstudio.mobcontrol;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Smooths the motion samples of one controller, on the game thread. Samples are only consumed when the game
+ * asks for a value, so games that don't use motion pay nothing for it.
+ * <p>
+ * Acceleration and rotation rate go through a one pole low-pass filter whose time constant comes from
+ * {@link #setSensitivity(float)}. Tilt is a complementary filter: the gyroscope's rotation rate is integrated
+ * for quick response and pulled towards the angle of gravity from the accelerometer, which stops it drifting.
+ */
+final class MotionFilter {
+
+    /**
+     * Smoothing time constant at sensitivity 0. At 1 there is no smoothing.
+     */
+    static final float MAX_SMOOTHING_SECONDS = 0.25f;
+    static final float DEFAULT_SENSITIVITY = 0.8f;
+    /**
+     * How long the tilt trusts the gyroscope before gravity wins.
+     */
+    static final float TILT_TIME_CONSTANT_SECONDS = 0.5f;
+    /**
+     * Gaps longer than this, e.g. the phone stopped sending for a while, restart the filters.
+     */
+    private static final float MAX_STEP_SECONDS = 0.25f;
+
+    final Vector3 acceleration = new Vector3();
+    final Vector3 rotationRate = new Vector3();
+    final Vector3 tilt = new Vector3();
+
+    private final float[] sample = new float[MotionBuffer.VALUES];
+    private final float[] filtered = new float[MotionBuffer.VALUES];
+    private float pitch;
+    private float roll;
+    private float smoothingSeconds = (1 - DEFAULT_SENSITIVITY) * MAX_SMOOTHING_SECONDS;
+
+    private MotionBuffer source;
+    private long next;
+    private long lastNanos;
+    private boolean started;
+
+    /**
+     * @param sensitivity 0 to 1, higher responds faster but passes through more shake
+     */
+    void setSensitivity(float sensitivity) {
+        smoothingSeconds = (1 - MathUtils.clamp(sensitivity, 0f, 1f)) * MAX_SMOOTHING_SECONDS;
+    }
+
+    /**
+     * Takes in the samples that arrived since the last call.
+     */
+    void update(MotionBuffer buffer) {
+        if (buffer != source) {
+            // A new socket after the phone reconnected.
+            source = buffer;
+            next = buffer.written();
+            started = false;
+        }
+        long end = buffer.written();
+        next = Math.max(next, buffer.oldestReadable(end));
+        for (; next < end; next++) {
+            // False if the game thread fell so far behind that the phone overwrote the sample while we read.
+            if (buffer.read(next, sample)) {
+                apply(buffer.readNanos());
+            }
+        }
+        acceleration.set(filtered[0], filtered[1], filtered[2]);
+        rotationRate.set(filtered[3], filtered[4], filtered[5]);
+        tilt.set(pitch, roll, 0);
+    }
+
+    private void apply(long nanos) {
+        float dt = (nanos - lastNanos) / 1e9f;
+        lastNanos = nanos;
+        float gravityPitch = (float) Math.toDegrees(Math.atan2(sample[1], sample[2]));
+        float gravityRoll = (float) Math.toDegrees(Math.atan2(-sample[0],
+                Math.sqrt(sample[1] * sample[1] + sample[2] * sample[2])));
+        if (!started || dt < 0 || dt > MAX_STEP_SECONDS) {
+            System.arraycopy(sample, 0, filtered, 0, filtered.length);
+            pitch = gravityPitch;
+            roll = gravityRoll;
+            started = true;
+            return;
+        }
+        float alpha = smoothingSeconds <= 0 ? 1 : dt / (smoothingSeconds + dt);
+        for (int i = 0; i < filtered.length; i++) {
+            filtered[i] += alpha * (sample[i] - filtered[i]);
+        }
+        float k = TILT_TIME_CONSTANT_SECONDS / (TILT_TIME_CONSTANT_SECONDS + dt);
+        pitch = gravityPitch + k * wrapDegrees(pitch + sample[3] * dt - gravityPitch);
+        roll = gravityRoll + k * wrapDegrees(roll + sample[4] * dt - gravityRoll);
+        pitch = wrapDegrees(pitch);
+    }
+
+    /**
+     * @return the same angle between -180 and 180
+     */
+    static float wrapDegrees(float degrees) {
+        degrees %= 360;
+        if (degrees > 180) {
+            degrees -= 360;
+        } else if (degrees < -180) {
+            degrees += 360;
+        }
+        return degrees;
+    }
+}
@@ -0,0 +1,83 @@
+package uk.co.electronstudio.mobcontrol;
+
+import static uk.co.electronstudio.mobcontrol.MobController.SDL_CONTROLLER_AXIS_MAX;
+
+/**
+ * Decoder for the compact binary pad frame, which clients may use instead of JSON once the server has
+ * advertised {@link #VERSION} in its hello message. All values are little-endian:
+ * <pre>
+ * offset size
+ *      0    1  version
+ *      1    1  flags, bit 0 set if the client timestamp is present
+ *      2    2  sequence number, unsigned, wraps
+ *      4    2  button bitmask, bit n is button n
+ *      6   12  six axes, signed int16, value * 32767
+ *     18    4  optional client timestamp, low 32 bits of milliseconds since the epoch
+ * </pre>
+ * Unlike the JSON message a binary frame always carries the full pad state.
+ * <p>
+ * Not thread safe, use one instance per socket.
+ */
+final class PadBinaryProtocol {
+
+    static final int VERSION = 1;
+    static final int FRAME_LENGTH = 6 + 2 * SDL_CONTROLLER_AXIS_MAX;
+    static final int FLAG_TIMESTAMP = 1;
+
+    static final int ALL_BUTTONS = (1 << MobController.SDL_CONTROLLER_BUTTON_MAX) - 1;
+    static final int ALL_AXES = (1 << SDL_CONTROLLER_AXIS_MAX) - 1;
+
+    private static final float AXIS_SCALE = 1f / 32767f;
+
+    int sequence;
+    /**
+     * Client clock in milliseconds when the last frame was sent, or -1 if it didn't say.
+     */
+    long clientTime;
+    int buttonValues;
+    final float[] axisValues = new float[SDL_CONTROLLER_AXIS_MAX];
+
+    /**
+     * @return false if the frame is not a pad frame of a version we understand
+     */
+    boolean decode(byte[] payload, int offset, int length) {
+        if (length < FRAME_LENGTH || payload[offset] != VERSION) {
+            return false;
+        }
+        int flags = payload[offset + 1];
+        if ((flags & FLAG_TIMESTAMP) != 0 && length < FRAME_LENGTH + 4) {
+            return false;
+        }
+        sequence = readUnsignedShort(payload, offset + 2);
+        buttonValues = readUnsignedShort(payload, offset + 4) & ALL_BUTTONS;
+        for (int i = 0; i < SDL_CONTROLLER_AXIS_MAX; i++) {
+            float value = (short) readUnsignedShort(payload, offset + 6 + 2 * i) * AXIS_SCALE;
+            axisValues[i] = Math.max(-1f, value);
+        }
+        if ((flags & FLAG_TIMESTAMP) != 0) {
+            long low = (readUnsignedShort(payload, offset + FRAME_LENGTH)
+                    | (long) readUnsignedShort(payload, offset + FRAME_LENGTH + 2) << 16);
+            clientTime = unwrapMillis(low, System.currentTimeMillis());
+        } else {
+            clientTime = -1;
+        }
+        return true;
+    }
+
+    /**
+     * Picks the time closest to now whose low 32 bits are low.
+     */
+    static long unwrapMillis(long low, long now) {
+        long time = (now & ~0xffffffffL) | low;
+        if (time - now > 0x80000000L) {
+            time -= 0x100000000L;
+        } else if (now - time > 0x80000000L) {
+            time += 0x100000000L;
+        }
+        return time;
+    }
+
+    private static int readUnsignedShort(byte[] payload, int index) {
+        return (payload[index] & 0xff) | (payload[index + 1] & 0xff) << 8;
+    }
+}
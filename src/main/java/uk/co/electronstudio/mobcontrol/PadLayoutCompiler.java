@@ -0,0 +1,91 @@
+package uk.co.electronstudio.mobcontrol;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a pad's section.png, whose colours mark where each input is, into a hit-test map for the client, so the
+ * phone never has to read pixels back from a canvas:
+ * <pre>
+ * {
+ *   "width": 1600, "height": 900,
+ *   "colours": ["255,0,0,255", ...],          r,g,b,a of each colour in the image, as the client names them
+ *   "boxes": [[x, y, w, h], ...],             bounding box of each colour, in image pixels
+ *   "rows": [[end, colour, end, colour, ...], ...]
+ * }
+ * </pre>
+ * Each row is its runs of colour from left to right, a run being the index of its colour and the x just past
+ * its end. Section images are flat colour, so there are only a handful of runs per row.
+ */
+final class PadLayoutCompiler {
+
+    static final String SECTION = "section.png";
+    static final String GRAPHIC = "graphic.svg";
+    static final String HIT_MAP = "hitmap.json";
+
+    private PadLayoutCompiler() {
+    }
+
+    static byte[] compile(byte[] sectionPng) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(sectionPng));
+        if (image == null) {
+            throw new IOException("Not an image");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Map<Integer, Integer> indices = new HashMap<>();
+        List<int[]> boxes = new ArrayList<>();
+        StringBuilder rows = new StringBuilder();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            rows.append(y == 0 ? "[" : ",[");
+            for (int x = 0; x < width; ) {
+                int argb = row[x];
+                int start = x;
+                while (x < width && row[x] == argb) {
+                    x++;
+                }
+                Integer index = indices.get(argb);
+                if (index == null) {
+                    index = boxes.size();
+                    indices.put(argb, index);
+                    boxes.add(new int[]{start, y, x - 1, y});
+                }
+                int[] box = boxes.get(index);
+                box[0] = Math.min(box[0], start);
+                box[2] = Math.max(box[2], x - 1);
+                box[3] = y;
+                rows.append(start == 0 ? "" : ",").append(x).append(',').append(index);
+            }
+            rows.append(']');
+        }
+
+        StringBuilder json = new StringBuilder(rows.length() + 1024);
+        json.append("{\"width\":").append(width).append(",\"height\":").append(height).append(",\"colours\":[");
+        String[] colours = new String[boxes.size()];
+        for (Map.Entry<Integer, Integer> entry : indices.entrySet()) {
+            int argb = entry.getKey();
+            colours[entry.getValue()] = (argb >> 16 & 0xff) + "," + (argb >> 8 & 0xff) + "," + (argb & 0xff) + ","
+                    + (argb >>> 24);
+        }
+        for (int i = 0; i < colours.length; i++) {
+            json.append(i == 0 ? "\"" : ",\"").append(colours[i]).append('"');
+        }
+        json.append("],\"boxes\":[");
+        for (int i = 0; i < boxes.size(); i++) {
+            int[] box = boxes.get(i);
+            json.append(i == 0 ? "[" : ",[").append(box[0]).append(',').append(box[1]).append(',')
+                    .append(box[2] - box[0]).append(',').append(box[3] - box[1]).append(']');
+        }
+        json.append("],\"rows\":[").append(rows).append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
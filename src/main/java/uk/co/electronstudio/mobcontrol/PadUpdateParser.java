@@ -0,0 +1,283 @@
+package uk.co.electronstudio.mobcontrol;
+
+import static uk.co.electronstudio.mobcontrol.MobController.*;
+
+/**
+ * Streaming parser for the pad update message, which is a flat JSON object of button and axis names plus
+ * optional sequence number and client timestamp, e.g.
+ * <pre>{ "BUTTON_A": true, "AXIS_LEFTX": -0.25, "__seq__": 42, "__time__": 1571234567890 }</pre>
+ * Keys are recognised by a pre-hashed lookup table and values are decoded in place, so parsing a message
+ * does not allocate. Anything else (typed messages such as set_name, unknown keys, escapes, malformed input)
+ * makes {@link #parse(String)} return false so the caller can fall back to the general purpose JsonReader.
+ * <p>
+ * Not thread safe, use one instance per socket.
+ */
+final class PadUpdateParser {
+
+    private static final int AXIS_FLAG = 0x100;
+    private static final int META_FLAG = 0x200;
+    private static final int META_SEQUENCE = 1 | META_FLAG;
+    private static final int META_TIME = 2 | META_FLAG;
+    private static final String[] metaNames = {"__seq__", "__time__"};
+    private static final int TABLE_SIZE = 64;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    /**
+     * Open addressing table from key hash to (index + 1), with AXIS_FLAG set for axes and META_FLAG for the
+     * sequence/time fields. Zero means empty.
+     */
+    private static final int[] keyTable = new int[TABLE_SIZE];
+    private static final int[] keyHashes = new int[TABLE_SIZE];
+
+    private static final double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    static {
+        for (int i = 0; i < buttonNames.length; i++) {
+            addKey(buttonNames[i], i + 1);
+        }
+        for (int i = 0; i < axisNames.length; i++) {
+            addKey(axisNames[i], (i + 1) | AXIS_FLAG);
+        }
+        addKey(metaNames[0], META_SEQUENCE);
+        addKey(metaNames[1], META_TIME);
+    }
+
+    private static void addKey(String name, int entry) {
+        int hash = name.hashCode();
+        int slot = mix(hash) & TABLE_MASK;
+        while (keyTable[slot] != 0) {
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        keyTable[slot] = entry;
+        keyHashes[slot] = hash;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Bit n is set if button n was present in the last parsed message.
+     */
+    int buttonMask;
+    /**
+     * Bit n is the value of button n, only meaningful where buttonMask is set.
+     */
+    int buttonValues;
+    /**
+     * Bit n is set if axis n was present in the last parsed message.
+     */
+    int axisMask;
+    final float[] axisValues = new float[SDL_CONTROLLER_AXIS_MAX];
+    /**
+     * Sequence number of the last parsed message, or -1 if it didn't have one.
+     */
+    int sequence;
+    /**
+     * Client clock in milliseconds when the last parsed message was sent, or -1 if it didn't say.
+     */
+    long clientTime;
+
+    private String message;
+    private int pos;
+    private double number;
+
+    /**
+     * @return true if the message was a complete pad update and the results are available in the fields,
+     * false if the message needs to be handled by the general JSON parser.
+     */
+    boolean parse(String message) {
+        this.message = message;
+        this.pos = 0;
+        buttonMask = 0;
+        buttonValues = 0;
+        axisMask = 0;
+        sequence = -1;
+        clientTime = -1;
+        try {
+            return parseObject();
+        } finally {
+            this.message = null;
+        }
+    }
+
+    private boolean parseObject() {
+        final String s = message;
+        final int length = s.length();
+        skipWhitespace();
+        if (pos >= length || s.charAt(pos) != '{') return false;
+        pos++;
+        skipWhitespace();
+        if (pos < length && s.charAt(pos) == '}') {
+            pos++;
+            return atEnd();
+        }
+        while (true) {
+            int entry = parseKey();
+            if (entry == 0) return false;
+            skipWhitespace();
+            if (pos >= length || s.charAt(pos) != ':') return false;
+            pos++;
+            skipWhitespace();
+            if ((entry & META_FLAG) != 0) {
+                if (!parseNumber()) return false;
+                if (entry == META_SEQUENCE) {
+                    sequence = (int) number & 0xffff;
+                } else {
+                    clientTime = (long) number;
+                }
+            } else if ((entry & AXIS_FLAG) != 0) {
+                int axis = (entry & ~AXIS_FLAG) - 1;
+                if (!parseNumber()) return false;
+                axisValues[axis] = (float) number;
+                axisMask |= 1 << axis;
+            } else {
+                int button = entry - 1;
+                if (s.startsWith("true", pos)) {
+                    pos += 4;
+                    buttonValues |= 1 << button;
+                } else if (s.startsWith("false", pos)) {
+                    pos += 5;
+                    buttonValues &= ~(1 << button);
+                } else {
+                    return false;
+                }
+                buttonMask |= 1 << button;
+            }
+            skipWhitespace();
+            if (pos >= length) return false;
+            char c = s.charAt(pos++);
+            if (c == '}') return atEnd();
+            if (c != ',') return false;
+            skipWhitespace();
+        }
+    }
+
+    /**
+     * @return the table entry for the quoted key at the current position, or 0 if it isn't a known key.
+     */
+    private int parseKey() {
+        final String s = message;
+        final int length = s.length();
+        if (pos >= length || s.charAt(pos) != '"') return 0;
+        int start = ++pos;
+        int hash = 0;
+        while (pos < length) {
+            char c = s.charAt(pos);
+            if (c == '"') break;
+            if (c == '\\') return 0;
+            hash = 31 * hash + c;
+            pos++;
+        }
+        if (pos >= length) return 0;
+        int keyLength = pos - start;
+        pos++;
+
+        int slot = mix(hash) & TABLE_MASK;
+        int entry;
+        while ((entry = keyTable[slot]) != 0) {
+            if (keyHashes[slot] == hash) {
+                String name = keyName(entry);
+                if (name.length() == keyLength && s.regionMatches(start, name, 0, keyLength)) {
+                    return entry;
+                }
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return 0;
+    }
+
+    private static String keyName(int entry) {
+        if ((entry & META_FLAG) != 0) return metaNames[(entry & ~META_FLAG) - 1];
+        if ((entry & AXIS_FLAG) != 0) return axisNames[(entry & ~AXIS_FLAG) - 1];
+        return buttonNames[entry - 1];
+    }
+
+    /**
+     * Parses the number at the current position into {@link #number}.
+     */
+    private boolean parseNumber() {
+        final String s = message;
+        final int length = s.length();
+        boolean negative = false;
+        if (pos < length && s.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        char c;
+        while (pos < length && (c = s.charAt(pos)) >= '0' && c <= '9') {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+            any = true;
+            pos++;
+        }
+        if (pos < length && s.charAt(pos) == '.') {
+            pos++;
+            while (pos < length && (c = s.charAt(pos)) >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                any = true;
+                pos++;
+            }
+        }
+        if (!any) return false;
+        if (pos < length && ((c = s.charAt(pos)) == 'e' || c == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < length && ((c = s.charAt(pos)) == '-' || c == '+')) {
+                negativeExponent = c == '-';
+                pos++;
+            }
+            int e = 0;
+            boolean anyExponent = false;
+            while (pos < length && (c = s.charAt(pos)) >= '0' && c <= '9') {
+                if (e < 10000) e = e * 10 + (c - '0');
+                anyExponent = true;
+                pos++;
+            }
+            if (!anyExponent) return false;
+            exponent += negativeExponent ? -e : e;
+        }
+
+        double value = mantissa;
+        if (mantissa != 0 && exponent != 0) {
+            if (exponent > 0 && exponent < powersOfTen.length) {
+                value *= powersOfTen[exponent];
+            } else if (exponent < 0 && -exponent < powersOfTen.length) {
+                value /= powersOfTen[-exponent];
+            } else {
+                value *= Math.pow(10, exponent);
+            }
+        }
+        number = negative ? -value : value;
+        return true;
+    }
+
+    private void skipWhitespace() {
+        final String s = message;
+        final int length = s.length();
+        while (pos < length) {
+            char c = s.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return;
+            pos++;
+        }
+    }
+
+    private boolean atEnd() {
+        skipWhitespace();
+        return pos == message.length();
+    }
+}
@@ -0,0 +1,78 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The rumble command waiting to go to one phone. Asking for rumble only records the command, and the manager
+ * sends it from pollState without waiting for the network, so the game thread is never blocked by a slow phone.
+ * Commands made in the same frame replace each other. While a command is still being written to the socket,
+ * newer ones keep replacing the pending one instead of queueing up behind it, so a phone that can't keep up
+ * gets the latest command rather than a backlog.
+ */
+final class RumbleOutput implements WriteCallback {
+
+    private float leftMagnitude;
+    private float rightMagnitude;
+    private int durationMs;
+    private boolean pending;
+
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+
+    synchronized void set(float leftMagnitude, float rightMagnitude, int durationMs) {
+        this.leftMagnitude = leftMagnitude;
+        this.rightMagnitude = rightMagnitude;
+        this.durationMs = durationMs;
+        this.pending = true;
+    }
+
+    /**
+     * Sends the pending command, if there is one and the previous one has been written.
+     *
+     * @param remote null if the socket has gone, in which case the command is dropped
+     * @return length of the message sent, 0 if nothing was
+     */
+    int flush(RemoteEndpoint remote) {
+        if (inFlight.get()) {
+            return 0;
+        }
+        float left;
+        float right;
+        int duration;
+        synchronized (this) {
+            if (!pending) {
+                return 0;
+            }
+            pending = false;
+            left = leftMagnitude;
+            right = rightMagnitude;
+            duration = durationMs;
+        }
+        if (remote == null) {
+            return 0;
+        }
+        inFlight.set(true);
+        String message = WebSocket.rumbleMessage(left, right, duration);
+        try {
+            remote.sendString(message, this);
+            return message.length();
+        } catch (Exception e) {
+            inFlight.set(false);
+            MobLog.error("Rumble failed", e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void writeSuccess() {
+        inFlight.set(false);
+    }
+
+    @Override
+    public void writeFailed(Throwable x) {
+        // The socket is closing, its controller will be disconnected in a moment.
+        inFlight.set(false);
+    }
+}
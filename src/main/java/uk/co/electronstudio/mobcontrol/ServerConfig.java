@@ -0,0 +1,110 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Settings for the embedded web server, see {@link MobControllerManager#MobControllerManager(ServerConfig)}.
+ * Apart from the port the defaults are Jetty's own.
+ * <p>
+ * On small machines, e.g. handheld PCs, fewer selectors and a lower thread priority leave more of the CPU to
+ * the game's render thread. Java can't pin threads to particular cores, but the operating system will generally
+ * keep low priority threads off a busy core.
+ */
+public class ServerConfig {
+    /**
+     * 8080 on Linux, where lower ports need root, 80 elsewhere.
+     */
+    public int port = System.getProperty("os.name").toLowerCase().contains("linux") ? 8080 : 80;
+
+    /**
+     * Serve HTTPS, and WSS to the phones, with the certificate in this Java key store, e.g. a .p12 or .jks file.
+     * Null, the default, for plain HTTP.
+     * <p>
+     * Browsers only run the client's service worker, which keeps the client on the phone so it loads without the
+     * network, on localhost or over HTTPS with a certificate they trust. A self-signed certificate only works on
+     * phones that have been told to trust it.
+     */
+    public String keyStorePath = null;
+
+    public String keyStorePassword = null;
+
+    /**
+     * Threads accepting new connections, -1 to let Jetty choose from the number of cores.
+     */
+    public int acceptors = -1;
+
+    /**
+     * Threads doing network IO for established connections, -1 to let Jetty choose from the number of cores.
+     * 1 is plenty for a few dozen phones.
+     */
+    public int selectors = -1;
+
+    public int minThreads = 8;
+    public int maxThreads = 200;
+
+    /**
+     * Priority of the server's threads, and of the scheduler that sends pings.
+     */
+    public int threadPriority = Thread.NORM_PRIORITY;
+
+    /**
+     * Handle connections on virtual threads. Needs Java 21 or later, on older versions the normal thread pool
+     * is used. minThreads, maxThreads and threadPriority don't apply to virtual threads.
+     */
+    public boolean virtualThreads = false;
+
+    /**
+     * Use this pool rather than creating one, e.g. to share one pool between several managers on different
+     * ports. Start it before creating the managers, then they won't stop it when they stop.
+     * The settings above for the pool are ignored.
+     */
+    public ThreadPool threadPool = null;
+
+    /**
+     * Open sockets allowed at once across the whole server, 0 for no limit. Each game can also limit its players
+     * with {@link MobControllerManager#setMaxControllers(int)}.
+     */
+    public int maxConnections = 512;
+
+    /**
+     * Open sockets allowed at once from one IP address, 0 for no limit. A phone only needs one, plus one more
+     * for a moment when it reconnects.
+     */
+    public int maxConnectionsPerAddress = 4;
+
+    /**
+     * Messages per second each phone may send, 0 for no limit. Messages over the limit are dropped unread.
+     * Phones keep well under it, see {@link MobControllerManager#setMaxClientSendRate(int)}: they send pad
+     * updates at up to that rate, plus motion at the same rate and button presses straight away.
+     */
+    public int maxMessageRate = 300;
+
+    /**
+     * Messages a phone may send at once after a quiet spell, above maxMessageRate.
+     */
+    public int messageBurst = 60;
+
+    /**
+     * Largest message, text or binary, a phone may send. Anything bigger closes its connection before it's
+     * read. The client's largest messages are well under 1 KB.
+     */
+    public int maxMessageSize = 4096;
+
+    /**
+     * Connections with no traffic for this long are closed. The server pings every second, so this only
+     * catches connections that aren't being read at all.
+     */
+    public int idleTimeoutMs = 30000;
+
+    /**
+     * Serve the server's {@link ServerMetrics} at /metrics for Prometheus, and register them with JMX.
+     * They're collected either way.
+     */
+    public boolean metrics = true;
+
+    /**
+     * Start the server when the manager or lobby is created, which waits while the client files are read.
+     * Turn it off to start it later with {@link MobControllerManager#startAsync()}, which doesn't wait.
+     */
+    public boolean autoStart = true;
+}
@@ -0,0 +1,500 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.websocket.api.StatusCode;
+
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for a whole server, i.e. every manager using it, served in Prometheus text format at
+ * {@link #PATH} and as a JMX MXBean.
+ * <p>
+ * Recording is a LongAdder increment or two, which socket threads can do at once without contending, and
+ * doesn't allocate. Everything else, totals, rates and gauges such as queue depths, is worked out when the
+ * metrics are read.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    static final String PATH = "/metrics";
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    static final int DISCONNECT_NORMAL = 0,
+            DISCONNECT_GOING_AWAY = 1,
+            DISCONNECT_ABNORMAL = 2,
+            DISCONNECT_PING_TIMEOUT = 3,
+            DISCONNECT_FULL = 4,
+            DISCONNECT_TOO_LARGE = 5,
+            DISCONNECT_ERROR = 6,
+            DISCONNECT_OTHER = 7;
+    private static final String[] DISCONNECT_REASONS = {"normal", "going_away", "abnormal", "ping_timeout", "full",
+            "too_large", "error", "other"};
+
+    /**
+     * Why a connection was turned away, see {@link AdmissionControl}.
+     */
+    static final int REJECTED_GAME_FULL = 0,
+            REJECTED_SERVER_FULL = 1,
+            REJECTED_ADDRESS = 2,
+            REJECTED_NO_ROOM = 3;
+    private static final String[] REJECTED_REASONS = {"game_full", "server_full", "address_limit", "no_room"};
+
+    /**
+     * Why a message was thrown away unread.
+     */
+    static final int DROPPED_RATE = 0,
+            DROPPED_GARBAGE = 1;
+    private static final String[] DROPPED_REASONS = {"rate_limit", "garbage"};
+
+    /**
+     * Parts of starting the server: reading the client files and setting up Jetty, which only happen the first
+     * time, starting Jetty, and the whole thing, including registering with JMX.
+     */
+    static final int START_CLIENT = 0,
+            START_JETTY = 1,
+            START_TOTAL = 2;
+    private static final String[] START_PHASES = {"client", "jetty", "total"};
+
+    /**
+     * A counter for each of a fixed set of reasons.
+     */
+    static final class Counters {
+        private final String[] reasons;
+        private final LongAdder[] counts;
+
+        Counters(String[] reasons) {
+            this.reasons = reasons;
+            counts = new LongAdder[reasons.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void increment(int reason) {
+            counts[reason].increment();
+        }
+
+        long get(int reason) {
+            return counts[reason].sum();
+        }
+
+        Map<String, Long> toMap() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int i = 0; i < reasons.length; i++) {
+                result.put(reasons[i], counts[i].sum());
+            }
+            return result;
+        }
+
+        void write(StringBuilder out, String name, String help) {
+            header(out, name, help, "counter");
+            for (int i = 0; i < reasons.length; i++) {
+                out.append(name).append("{reason=\"").append(reasons[i]).append("\"} ").append(counts[i].sum())
+                        .append('\n');
+            }
+        }
+    }
+
+    /**
+     * A histogram of durations with fixed buckets, from a microsecond to a tenth of a second.
+     */
+    static final class Timer {
+        private static final long[] BOUNDS_NANOS = {1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000,
+                1000000, 2000000, 5000000, 10000000, 20000000, 50000000, 100000000};
+
+        private final LongAdder[] counts = new LongAdder[BOUNDS_NANOS.length + 1];
+        private final LongAdder totalNanos = new LongAdder();
+
+        Timer() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+                i++;
+            }
+            counts[i].increment();
+            totalNanos.add(nanos);
+        }
+
+        long getCount() {
+            long count = 0;
+            for (LongAdder c : counts) {
+                count += c.sum();
+            }
+            return count;
+        }
+
+        double getMeanMicros() {
+            long count = getCount();
+            return count == 0 ? 0 : totalNanos.sum() / 1000.0 / count;
+        }
+
+        /**
+         * @return upper bound of the bucket the percentile falls in, or of the last bucket for values beyond it
+         */
+        double getPercentileMicros(double percentile) {
+            long count = getCount();
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+                seen += counts[i].sum();
+                if (seen >= rank) {
+                    return BOUNDS_NANOS[i] / 1000.0;
+                }
+            }
+            return BOUNDS_NANOS[BOUNDS_NANOS.length - 1] / 1000.0;
+        }
+
+        void write(StringBuilder out, String name, String help) {
+            header(out, name, help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                String le = i < BOUNDS_NANOS.length ? Double.toString(BOUNDS_NANOS[i] / 1e9) : "+Inf";
+                out.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum ").append(totalNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Per second rate of a counter, measured between reads at least a second apart, for JMX clients that
+     * show the latest value rather than working out rates themselves.
+     */
+    private static final class Rate {
+        private final LongAdder counter;
+        private long lastValue;
+        private long lastNanos;
+        private double rate;
+
+        Rate(LongAdder counter) {
+            this.counter = counter;
+        }
+
+        synchronized double get() {
+            long now = System.nanoTime();
+            long value = counter.sum();
+            if (lastNanos == 0) {
+                lastNanos = now;
+                lastValue = value;
+            } else if (now - lastNanos >= TimeUnit.SECONDS.toNanos(1)) {
+                rate = (value - lastValue) * 1e9 / (now - lastNanos);
+                lastNanos = now;
+                lastValue = value;
+            }
+            return rate;
+        }
+    }
+
+    final LongAdder openConnections = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final Counters rejectedConnections = new Counters(REJECTED_REASONS);
+    final Counters droppedMessages = new Counters(DROPPED_REASONS);
+    final Counters disconnects = new Counters(DISCONNECT_REASONS);
+
+    final Timer parse = new Timer();
+    final Timer pollState = new Timer();
+    final Timer listenerDispatch = new Timer();
+
+    final LongAdder starts = new LongAdder();
+    private final AtomicLongArray lastStartNanos = new AtomicLongArray(START_PHASES.length);
+
+    private final Rate messagesInRate = new Rate(messagesIn);
+    private final Rate bytesInRate = new Rate(bytesIn);
+    private final Rate messagesOutRate = new Rate(messagesOut);
+    private final Rate bytesOutRate = new Rate(bytesOut);
+
+    /**
+     * The managers using the server, for gauges that are read from them.
+     */
+    private final CopyOnWriteArrayList<MobControllerManager> managers = new CopyOnWriteArrayList<>();
+
+    private ObjectName objectName;
+
+    void add(MobControllerManager manager) {
+        managers.add(manager);
+    }
+
+    void remove(MobControllerManager manager) {
+        managers.remove(manager);
+    }
+
+    void received(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void sent(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    void started(long clientNanos, long jettyNanos, long totalNanos) {
+        lastStartNanos.set(START_CLIENT, clientNanos);
+        lastStartNanos.set(START_JETTY, jettyNanos);
+        lastStartNanos.set(START_TOTAL, totalNanos);
+        starts.increment();
+    }
+
+    /**
+     * @param timedOut the server closed the connection because the phone stopped answering pings
+     */
+    static int disconnectReason(int statusCode, boolean timedOut) {
+        if (timedOut) return DISCONNECT_PING_TIMEOUT;
+        switch (statusCode) {
+            case StatusCode.NORMAL:
+                return DISCONNECT_NORMAL;
+            case StatusCode.SHUTDOWN:
+                return DISCONNECT_GOING_AWAY;
+            case StatusCode.ABNORMAL:
+                return DISCONNECT_ABNORMAL;
+            case StatusCode.TRY_AGAIN_LATER:
+                return DISCONNECT_FULL;
+            case StatusCode.MESSAGE_TOO_LARGE:
+                return DISCONNECT_TOO_LARGE;
+            case StatusCode.PROTOCOL:
+            case StatusCode.BAD_DATA:
+            case StatusCode.BAD_PAYLOAD:
+            case StatusCode.POLICY_VIOLATION:
+            case StatusCode.SERVER_ERROR:
+                return DISCONNECT_ERROR;
+            default:
+                return DISCONNECT_OTHER;
+        }
+    }
+
+    /**
+     * Makes the metrics visible to JConsole and other JMX clients, named after the server's port.
+     */
+    synchronized void register(int port) {
+        if (objectName != null) return;
+        try {
+            objectName = new ObjectName("uk.co.electronstudio.mobcontrol:type=Server,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            MobLog.warn("Unable to register metrics with JMX: {}", e);
+            objectName = null;
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            MobLog.error("Unable to unregister metrics from JMX", e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public int getConnectedControllers() {
+        int count = 0;
+        for (MobControllerManager manager : managers) {
+            count += manager.getControllerArray().length;
+        }
+        return count;
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return openConnections.sum();
+    }
+
+    @Override
+    public int getConnectionQueueDepth() {
+        int depth = 0;
+        for (MobControllerManager manager : managers) {
+            depth += manager.connectionQueue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInRate.get();
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInRate.get();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutRate.get();
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutRate.get();
+    }
+
+    @Override
+    public Map<String, Long> getRejectedConnections() {
+        return rejectedConnections.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getDroppedMessages() {
+        return droppedMessages.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        return disconnects.toMap();
+    }
+
+    @Override
+    public long getStarts() {
+        return starts.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLastStartMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < START_PHASES.length; i++) {
+            result.put(START_PHASES[i], TimeUnit.NANOSECONDS.toMicros(lastStartNanos.get(i)));
+        }
+        return result;
+    }
+
+    @Override
+    public double getParseMicrosMean() {
+        return parse.getMeanMicros();
+    }
+
+    @Override
+    public double getParseMicrosP99() {
+        return parse.getPercentileMicros(99);
+    }
+
+    @Override
+    public double getPollStateMicrosMean() {
+        return pollState.getMeanMicros();
+    }
+
+    @Override
+    public double getPollStateMicrosP99() {
+        return pollState.getPercentileMicros(99);
+    }
+
+    @Override
+    public double getListenerDispatchMicrosMean() {
+        return listenerDispatch.getMeanMicros();
+    }
+
+    @Override
+    public double getListenerDispatchMicrosP99() {
+        return listenerDispatch.getPercentileMicros(99);
+    }
+
+    /**
+     * Everything in Prometheus text exposition format.
+     */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "mobcontrol_connected_controllers", "Controllers the games have, including ones waiting to "
+                + "reconnect", getConnectedControllers());
+        gauge(out, "mobcontrol_open_connections", "Open WebSocket connections", getOpenConnections());
+        gauge(out, "mobcontrol_connection_queue_depth", "Controllers waiting for pollState to connect them",
+                getConnectionQueueDepth());
+        counter(out, "mobcontrol_messages_received_total", "Messages received from phones", getMessagesIn());
+        counter(out, "mobcontrol_received_bytes_total", "Bytes of messages received from phones", getBytesIn());
+        counter(out, "mobcontrol_messages_sent_total", "Messages sent to phones", getMessagesOut());
+        counter(out, "mobcontrol_sent_bytes_total", "Bytes of messages sent to phones", getBytesOut());
+        rejectedConnections.write(out, "mobcontrol_rejected_connections_total",
+                "Connections turned away by reason");
+        droppedMessages.write(out, "mobcontrol_dropped_messages_total", "Messages from phones thrown away unread");
+        disconnects.write(out, "mobcontrol_disconnects_total", "Closed connections by reason");
+        parse.write(out, "mobcontrol_parse_seconds", "Time to decode a message from a phone");
+        pollState.write(out, "mobcontrol_poll_state_seconds", "Time spent in pollState, including listeners");
+        listenerDispatch.write(out, "mobcontrol_listener_dispatch_seconds",
+                "Time from the first listener call of a pollState to the end of event delivery");
+        counter(out, "mobcontrol_starts_total", "Times the server has been started", getStarts());
+        header(out, "mobcontrol_last_start_seconds", "Time taken by each part of the last start", "gauge");
+        for (int i = 0; i < START_PHASES.length; i++) {
+            out.append("mobcontrol_last_start_seconds{phase=\"").append(START_PHASES[i]).append("\"} ")
+                    .append(lastStartNanos.get(i) / 1e9).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Serves the metrics at {@link #PATH}.
+     */
+    static final class Handler extends AbstractHandler {
+        private final ServerMetrics metrics;
+
+        Handler(ServerMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+            if (!PATH.equals(target) || !"GET".equals(request.getMethod())) return;
+            baseRequest.setHandled(true);
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            response.setContentType(CONTENT_TYPE);
+            response.setHeader("Cache-Control", "no-store");
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        }
+    }
+}
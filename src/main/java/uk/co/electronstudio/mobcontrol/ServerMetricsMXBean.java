@@ -0,0 +1,66 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.util.Map;
+
+/**
+ * What JMX clients see of {@link ServerMetrics}. Times are in microseconds.
+ */
+public interface ServerMetricsMXBean {
+
+    int getConnectedControllers();
+
+    long getOpenConnections();
+
+    int getConnectionQueueDepth();
+
+    long getMessagesIn();
+
+    long getBytesIn();
+
+    long getMessagesOut();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesOutPerSecond();
+
+    /**
+     * Connections turned away by reason, e.g. "game_full", "address_limit".
+     */
+    Map<String, Long> getRejectedConnections();
+
+    /**
+     * Messages thrown away unread by reason, "rate_limit" or "garbage".
+     */
+    Map<String, Long> getDroppedMessages();
+
+    /**
+     * Closed connections by reason, e.g. "normal", "ping_timeout".
+     */
+    Map<String, Long> getDisconnects();
+
+    long getStarts();
+
+    /**
+     * How long the last start took, as "client" for reading the client files, which only happens the first time,
+     * "jetty" and "total".
+     */
+    Map<String, Long> getLastStartMicros();
+
+    double getParseMicrosMean();
+
+    double getParseMicrosP99();
+
+    double getPollStateMicrosMean();
+
+    double getPollStateMicrosP99();
+
+    double getListenerDispatchMicrosMean();
+
+    double getListenerDispatchMicrosP99();
+}
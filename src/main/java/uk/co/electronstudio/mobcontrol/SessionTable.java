@@ -0,0 +1,192 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session tokens, so a phone whose connection drops (screen lock, Wi-Fi blip) gets its old MobController back
+ * when it reconnects, rather than the game seeing it disconnect and a new player join.
+ * <p>
+ * Every controller gets a token, which the client keeps and sends when it reconnects. When a socket closes its
+ * controller is parked rather than disconnected. If the phone comes back within the grace period the controller
+ * is rebound to the new socket, otherwise it's disconnected as usual. At most {@link #MAX_PARKED} controllers
+ * are parked at once, beyond that the oldest are disconnected straight away.
+ */
+final class SessionTable {
+
+    static final int DEFAULT_GRACE_MS = 10000;
+    static final int MAX_PARKED = 64;
+
+    private static final class Entry {
+        final MobController controller;
+        /**
+         * The socket that last opened or resumed the session. For a moment after a resume the controller is
+         * still bound to the old one, so this, not the controller, decides whether a closing socket may park it.
+         */
+        WebSocket socket;
+        /**
+         * System.nanoTime() when a parked controller is disconnected, 0 while it has a socket.
+         */
+        long expiresNanos;
+
+        Entry(MobController controller) {
+            this.controller = controller;
+            socket = controller.getWebSocket();
+        }
+    }
+
+    private final MobControllerManager manager;
+    private final SecureRandom random = new SecureRandom();
+    /**
+     * In order of last change, so the first parked entry is the oldest.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private int parked;
+    private volatile int graceMs = DEFAULT_GRACE_MS;
+
+    SessionTable(MobControllerManager manager) {
+        this.manager = manager;
+    }
+
+    void setGraceMs(int graceMs) {
+        this.graceMs = graceMs;
+    }
+
+    int getGraceMs() {
+        return graceMs;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized boolean contains(String token) {
+        return entries.containsKey(token);
+    }
+
+    /**
+     * @param maxControllers 0 for no limit
+     * @return a new token for the controller, or null if there are already maxControllers sessions
+     */
+    synchronized String open(MobController controller, int maxControllers) {
+        if (maxControllers > 0 && entries.size() >= maxControllers) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        entries.put(token, new Entry(controller));
+        return token;
+    }
+
+    /**
+     * @param socket the new socket for the session
+     * @return the controller for the token, which the caller must rebind to its socket, or null if the token
+     * is unknown or has expired
+     */
+    synchronized MobController resume(String token, WebSocket socket) {
+        Entry entry = entries.remove(token);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresNanos != 0) {
+            parked--;
+        }
+        entry.expiresNanos = 0;
+        entry.socket = socket;
+        entries.put(token, entry);
+        return entry.controller;
+    }
+
+    /**
+     * Called when the controller's socket closes. The controller is disconnected once the grace period passes,
+     * unless it's resumed first. Does nothing if a newer socket has resumed the session in the meantime.
+     *
+     * @param socket the socket that closed
+     */
+    void park(String token, MobController controller, WebSocket socket) {
+        int grace = graceMs;
+        synchronized (this) {
+            Entry entry = entries.get(token);
+            if (entry != null && entry.socket != socket) {
+                return;
+            }
+            if (entry == null || entry.controller != controller) {
+                manager.disConnectionQueue.add(controller);
+                return;
+            }
+            if (grace <= 0) {
+                entries.remove(token);
+                if (entry.expiresNanos != 0) {
+                    parked--;
+                }
+                manager.disConnectionQueue.add(controller);
+                return;
+            }
+            entries.remove(token);
+            if (entry.expiresNanos == 0) {
+                parked++;
+            }
+            entry.expiresNanos = Math.max(1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(grace));
+            entries.put(token, entry);
+            evictOldest();
+        }
+        manager.scheduler.schedule(() -> expire(token), grace, TimeUnit.MILLISECONDS);
+    }
+
+    private void evictOldest() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (parked > MAX_PARKED && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expiresNanos != 0) {
+                iterator.remove();
+                parked--;
+                manager.disConnectionQueue.add(entry.controller);
+            }
+        }
+    }
+
+    private void expire(String token) {
+        MobController expired = null;
+        synchronized (this) {
+            Entry entry = entries.get(token);
+            // It may have been resumed, or resumed and parked again with a later expiry.
+            if (entry != null && entry.expiresNanos != 0 && System.nanoTime() - entry.expiresNanos >= 0) {
+                entries.remove(token);
+                parked--;
+                expired = entry.controller;
+            }
+        }
+        if (expired != null) {
+            manager.disConnectionQueue.add(expired);
+        }
+    }
+
+    /**
+     * Forgets every session.
+     *
+     * @return their controllers
+     */
+    synchronized List<MobController> closeAll() {
+        List<MobController> controllers = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            controllers.add(entry.controller);
+        }
+        entries.clear();
+        parked = 0;
+        return controllers;
+    }
+
+    synchronized void close(String token) {
+        Entry entry = entries.remove(token);
+        if (entry != null && entry.expiresNanos != 0) {
+            parked--;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.Resource;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the phone client from memory. Every file under the web root is read once, when the server first starts
+ * rather than when it's created, along with a gzipped copy for text formats, so a request is just a map lookup and
+ * a write. The gzipped copy is the .gz file the build puts next to the original, if there is one.
+ * <p>
+ * Responses have strong ETags, so phones that already have a file get a 304. Local references in the HTML and
+ * JavaScript are rewritten to add {@code ?v=<version>}, where the version is a hash of the whole client, and
+ * those URLs are cached by the phone for a year. The page itself is always revalidated, so a new build is
+ * picked up on the next load.
+ * <p>
+ * There is no brotli, the JDK can't encode it.
+ * <p>
+ * The list of files and the version are also served as {@value #ASSET_MANIFEST}, for the service worker in
+ * {@value #SERVICE_WORKER} to cache the whole client. The version is substituted into the service worker, so a
+ * new build changes it and phones update.
+ */
+class StaticAssetHandler extends AbstractHandler {
+
+    static final String VERSION_PARAMETER = "v";
+    static final String SERVICE_WORKER = "/sw.js";
+    static final String ASSET_MANIFEST = "/asset-manifest.json";
+    static final String PADS = "/pads/";
+    /**
+     * List of the pad layouts, which can change while the server runs.
+     */
+    static final String PAD_INDEX = PADS + "index.json";
+    private static final Pattern padSection =
+            Pattern.compile("/pads/(\\d+)/" + Pattern.quote(PadLayoutCompiler.SECTION));
+    private static final String VERSION_PLACEHOLDER = "__VERSION__";
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+
+    private static final Set<String> rewrittenExtensions = new HashSet<>(Arrays.asList("html", "js"));
+    /**
+     * Quoted relative or absolute paths to files, e.g. './lib/conn.js' or "/icons/favicon-16x16.png".
+     */
+    private static final Pattern localReference =
+            Pattern.compile("([\"'])((?:\\.{1,2}/|/)?[\\w\\-./]+\\.(?:js|css|png|svg|ico|json|xml))\\1");
+
+    static final class Asset {
+        final String contentType;
+        final ByteBuffer content;
+        final String etag;
+        final ByteBuffer gzipped;
+        final String gzipEtag;
+
+        Asset(String contentType, byte[] content, String etag, byte[] gzipped) {
+            this.contentType = contentType;
+            this.content = ByteBuffer.wrap(content);
+            this.etag = "\"" + etag + "\"";
+            this.gzipped = gzipped == null ? null : ByteBuffer.wrap(gzipped);
+            this.gzipEtag = "\"" + etag + "-gz\"";
+        }
+    }
+
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+    /**
+     * Pad number to name, null for the ones built into the client, whose buttons are in the page already.
+     */
+    private final SortedMap<Integer, String> padLayouts = new TreeMap<>();
+    private final Resource webRoot;
+    private String version;
+    /**
+     * Set once everything above is, so restarting the server doesn't load the files again.
+     */
+    private volatile boolean loaded;
+    /**
+     * Reads Jetty's tables of types when it's created, so that's left to {@link #load()}.
+     */
+    private MimeTypes mimeTypes;
+
+    /**
+     * Serves the client built into the library.
+     */
+    StaticAssetHandler() {
+        this(null);
+    }
+
+    StaticAssetHandler(Resource webRoot) {
+        this.webRoot = webRoot;
+    }
+
+    private static Resource clientRoot() throws IOException {
+        URL webRootLocation = StaticAssetHandler.class.getResource("/client/index.html");
+        if (webRootLocation == null) {
+            throw new IllegalStateException("Unable to determine webroot URL location");
+        }
+        try {
+            URI webRootUri = URI.create(webRootLocation.toURI().toASCIIString().replaceFirst("/index.html$", "/"));
+            MobLog.debug("Web root URI: {}", webRootUri);
+            return Resource.newResource(webRootUri);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Unable to determine webroot URL location", e);
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        load();
+        super.doStart();
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Reads and prepares every file, if that hasn't been done already.
+     */
+    synchronized void load() throws IOException {
+        if (loaded) return;
+        long start = System.nanoTime();
+        mimeTypes = new MimeTypes();
+        Map<String, byte[]> files = new TreeMap<>();
+        walk(webRoot == null ? clientRoot() : webRoot, "/", files);
+        compilePadLayouts(files);
+
+        MessageDigest digest = sha256();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (file.getKey().endsWith(".gz")) continue;
+            digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update(file.getValue());
+        }
+        version = hex(digest.digest(), 10);
+
+        int raw = 0;
+        int compressed = 0;
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String path = file.getKey();
+            if (path.endsWith(".gz")) continue;
+            byte[] content = file.getValue();
+            String extension = path.substring(path.lastIndexOf('.') + 1);
+            byte[] gzipped = files.get(path + ".gz");
+            if (rewrittenExtensions.contains(extension)) {
+                content = rewriteReferences(path, content, files.keySet());
+                gzipped = null;
+            }
+            if (path.equals(SERVICE_WORKER)) {
+                content = new String(content, StandardCharsets.UTF_8).replace(VERSION_PLACEHOLDER, version)
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            Asset asset = createAsset(path, content, gzipped);
+            assets.put(path, asset);
+            raw += content.length;
+            compressed += asset.gzipped == null ? content.length : asset.gzipped.remaining();
+        }
+        assets.put(PAD_INDEX, createAsset(PAD_INDEX, padIndex(), null));
+        assets.put(ASSET_MANIFEST, createAsset(ASSET_MANIFEST, assetManifest(), null));
+        MobLog.info(String.format("Loaded %d client files, %d KB, %d KB compressed, version %s in %d ms",
+                assets.size(), raw / 1024, compressed / 1024, version, (System.nanoTime() - start) / 1000000));
+        loaded = true;
+    }
+
+    private Asset createAsset(String path, byte[] content, byte[] gzipped) throws IOException {
+        String contentType = contentType(path);
+        if (gzipped == null && isCompressible(contentType)) {
+            gzipped = gzip(content);
+        }
+        if (gzipped != null && gzipped.length >= content.length) {
+            gzipped = null;
+        }
+        return new Asset(contentType, content, hex(sha256().digest(content), 16), gzipped);
+    }
+
+    /**
+     * Adds a hit-test map for every pad's section image, see {@link PadLayoutCompiler}.
+     */
+    private void compilePadLayouts(Map<String, byte[]> files) throws IOException {
+        Map<String, byte[]> hitMaps = new HashMap<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Matcher matcher = padSection.matcher(file.getKey());
+            if (matcher.matches()) {
+                int pad = Integer.parseInt(matcher.group(1));
+                hitMaps.put(PADS + pad + "/" + PadLayoutCompiler.HIT_MAP, PadLayoutCompiler.compile(file.getValue()));
+                padLayouts.put(pad, null);
+            }
+        }
+        files.putAll(hitMaps);
+    }
+
+    /**
+     * Serves a new pad layout, which phones can choose from the settings page. Loads the client first if the
+     * server hasn't started yet, to number it after the built in layouts.
+     *
+     * @return the layout's number
+     */
+    synchronized int addPadLayout(String name, byte[] sectionPng, byte[] graphicSvg) throws IOException {
+        load();
+        int pad = padLayouts.isEmpty() ? 1 : padLayouts.lastKey() + 1;
+        byte[] hitMap = PadLayoutCompiler.compile(sectionPng);
+        String directory = PADS + pad + "/";
+        assets.put(directory + PadLayoutCompiler.SECTION, createAsset(directory + PadLayoutCompiler.SECTION,
+                sectionPng, null));
+        assets.put(directory + PadLayoutCompiler.GRAPHIC, createAsset(directory + PadLayoutCompiler.GRAPHIC,
+                graphicSvg, null));
+        assets.put(directory + PadLayoutCompiler.HIT_MAP, createAsset(directory + PadLayoutCompiler.HIT_MAP,
+                hitMap, null));
+        padLayouts.put(pad, name);
+        assets.put(PAD_INDEX, createAsset(PAD_INDEX, padIndex(), null));
+        return pad;
+    }
+
+    /**
+     * [{"pad": 1, "name": null}, {"pad": 3, "name": "Racing"}, ...]
+     */
+    private synchronized byte[] padIndex() {
+        StringBuilder json = new StringBuilder("[");
+        for (Map.Entry<Integer, String> layout : padLayouts.entrySet()) {
+            if (json.length() > 1) json.append(',');
+            json.append("{\"pad\":").append(layout.getKey()).append(",\"name\":");
+            if (layout.getValue() == null) {
+                json.append("null");
+            } else {
+                json.append('"').append(layout.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            json.append('}');
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * {"version": "...", "files": ["/", "/index.html", ...]}, everything but the service worker itself and the
+     * pad index, which has to come from the server to see layouts added later.
+     */
+    private byte[] assetManifest() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"version\":\"").append(version).append("\",\"files\":[\"/\"");
+        for (String path : new TreeSet<>(assets.keySet())) {
+            if (path.equals(SERVICE_WORKER) || path.equals(PAD_INDEX)) continue;
+            json.append(",\"").append(path).append('"');
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void walk(Resource directory, String path, Map<String, byte[]> files) throws IOException {
+        String[] names = directory.list();
+        if (names == null) return;
+        for (String name : names) {
+            if (name.startsWith(".")) continue;
+            Resource resource = directory.addPath(name);
+            if (resource.isDirectory()) {
+                walk(resource, path + (name.endsWith("/") ? name : name + "/"), files);
+            } else {
+                try (InputStream in = resource.getInputStream()) {
+                    files.put(path + name, IO.readBytes(in));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the version to references to files we have, resolving relative ones against the referring file.
+     */
+    private byte[] rewriteReferences(String path, byte[] content, Set<String> paths) {
+        String text = new String(content, StandardCharsets.UTF_8);
+        String directory = path.substring(0, path.lastIndexOf('/') + 1);
+        Matcher matcher = localReference.matcher(text);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            String reference = matcher.group(2);
+            String replacement = matcher.group();
+            String resolved = resolve(directory, reference);
+            // The service worker keeps its URL, the browser checks it for changes itself.
+            if (paths.contains(resolved) && !resolved.equals(SERVICE_WORKER)) {
+                String quote = matcher.group(1);
+                replacement = quote + reference + "?" + VERSION_PARAMETER + "=" + version + quote;
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(result);
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String resolve(String directory, String reference) {
+        Deque<String> parts = new ArrayDeque<>();
+        String full = reference.startsWith("/") ? reference : directory + reference;
+        for (String part : full.split("/")) {
+            if (part.isEmpty() || part.equals(".")) continue;
+            if (part.equals("..")) {
+                parts.pollLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+        return "/" + String.join("/", parts);
+    }
+
+    private String contentType(String path) {
+        String type = mimeTypes.getMimeByExtension(path);
+        if (type == null) {
+            return "application/octet-stream";
+        }
+        if (isCompressible(type) && !type.contains("charset") && !type.startsWith("image/")) {
+            type += ";charset=utf-8";
+        }
+        return type;
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.contains("javascript") || contentType.contains("json")
+                || contentType.contains("xml");
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes) {{
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }}) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; s.length() < length; i++) {
+            s.append(String.format("%02x", bytes[i]));
+        }
+        return s.substring(0, length);
+    }
+
+    /**
+     * Hash of the whole client, changes whenever any file does.
+     */
+    String getVersion() {
+        return version;
+    }
+
+    Map<String, Asset> getAssets() {
+        return Collections.unmodifiableMap(assets);
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) return;
+        Asset asset = assets.get(target.endsWith("/") ? target + "index.html" : target);
+        if (asset == null) return;
+        baseRequest.setHandled(true);
+
+        boolean gzip = asset.gzipped != null && acceptsGzip(request.getHeader(HttpHeader.ACCEPT_ENCODING.asString()));
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+        boolean versioned = version.equals(request.getParameter(VERSION_PARAMETER));
+
+        response.setHeader(HttpHeader.ETAG.asString(), etag);
+        response.setHeader(HttpHeader.CACHE_CONTROL.asString(), versioned ? IMMUTABLE : REVALIDATE);
+        if (asset.gzipped != null) {
+            response.setHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+        }
+        if (matches(request.getHeader(HttpHeader.IF_NONE_MATCH.asString()), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        ByteBuffer content = gzip ? asset.gzipped : asset.content;
+        response.setContentType(asset.contentType);
+        if (gzip) {
+            response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), "gzip");
+        }
+        response.setContentLength(content.remaining());
+        if ("GET".equals(method)) {
+            baseRequest.getResponse().getHttpOutput().sendContent(content.duplicate());
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        return acceptEncoding != null && acceptEncoding.contains("gzip") && !acceptEncoding.contains("gzip;q=0");
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals(etag) || tag.equals("*")) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+package uk.co.electronstudio.mobcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits one connection to a steady rate of messages with bursts of up to a given size. Rather than a count of
+ * tokens it keeps the time at which the bucket would be full again (the generic cell rate algorithm), so taking a
+ * token is a comparison and an add. Only used by the connection's own socket thread.
+ */
+final class TokenBucket {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private long fullAtNanos = Long.MIN_VALUE;
+
+    /**
+     * @param ratePerSecond 0 for no limit
+     * @param burst         messages allowed at once after a quiet spell
+     */
+    TokenBucket(int ratePerSecond, int burst) {
+        intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+        toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+    }
+
+    /**
+     * @return false if the message is over the limit and should be dropped
+     */
+    boolean take(long nowNanos) {
+        if (intervalNanos == 0) return true;
+        long fullAt = Math.max(fullAtNanos, nowNanos);
+        if (fullAt - nowNanos > toleranceNanos) {
+            return false;
+        }
+        fullAtNanos = fullAt + intervalNanos;
+        return true;
+    }
+}
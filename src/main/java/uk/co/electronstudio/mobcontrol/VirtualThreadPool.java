@@ -0,0 +1,96 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.TryExecutor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets Jetty run its tasks on Java 21 virtual threads, one per task. This Jetty predates virtual threads, so the
+ * executor is looked up by reflection and the library still runs on Java 8.
+ */
+class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool, TryExecutor {
+
+    private final Method newExecutor;
+    private final AtomicInteger running = new AtomicInteger();
+    /**
+     * Made on each start, since a stopped executor can't be started again but the server can.
+     */
+    private volatile ExecutorService executor;
+
+    private VirtualThreadPool(Method newExecutor) {
+        this.newExecutor = newExecutor;
+    }
+
+    /**
+     * @return null if this Java doesn't have virtual threads
+     */
+    static VirtualThreadPool create() {
+        try {
+            return new VirtualThreadPool(Executors.class.getMethod("newVirtualThreadPerTaskExecutor"));
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        executor = (ExecutorService) newExecutor.invoke(null);
+        super.doStart();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        running.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * There's always another virtual thread.
+     */
+    @Override
+    public boolean tryExecute(Runnable task) {
+        execute(task);
+        return true;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        super.doStop();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
@@ -2,50 +2,215 @@ package uk.co.electronstudio.mobcontrol;
 
 import com.badlogic.gdx.utils.JsonReader;
 import com.badlogic.gdx.utils.JsonValue;
+import org.eclipse.jetty.websocket.api.CloseException;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 
 import java.awt.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static uk.co.electronstudio.mobcontrol.MobController.*;
 
 public class WebSocket extends WebSocketAdapter {
-    static MobControllerManager mobControllerManager;
+    static final long PING_INTERVAL_MS = 1000;
+    /**
+     * Connections that have answered pings before but then go quiet for this long are dropped.
+     */
+    static final long PING_TIMEOUT_MS = 4000;
+
+    private final MobControllerManager mobControllerManager;
+
+    static final String SESSION_PARAMETER = "session";
 
     private MobController controller;
+    private String sessionToken;
 
-    final AtomicReferenceArray<Float> controllerAxis = new AtomicReferenceArray<>(SDL_CONTROLLER_AXIS_MAX);
-    final AtomicReferenceArray<Boolean> controllerButtons = new AtomicReferenceArray<>(SDL_CONTROLLER_BUTTON_MAX);
+    final ControllerState state = new ControllerState();
+    final ControllerStats stats = new ControllerStats();
+    final LinkQuality linkQuality = new LinkQuality();
 
     volatile Color colour1 = Color.WHITE;
     volatile Color colour2 = Color.WHITE;
     volatile String playerName = "Player";
 
+    private final PadUpdateParser padUpdateParser = new PadUpdateParser();
+    private final PadBinaryProtocol padBinaryProtocol = new PadBinaryProtocol();
+    final MotionBuffer motion = new MotionBuffer();
+    private final RumbleOutput rumbleOutput = new RumbleOutput();
+    /**
+     * Bytes of shared messages handed to Jetty but not yet written to the network.
+     */
+    private final AtomicLong outboundBytes = new AtomicLong();
+
+    private volatile ScheduledFuture<?> pingTask;
+    private volatile long pingSentNanos;
+    private volatile long pingSentMillis;
+    private volatile long lastReceivedNanos;
+    private volatile boolean answersPings;
+    private volatile boolean timedOut;
+
+    private final TokenBucket messageLimit;
+    /**
+     * Set once the connection has been counted by the server's {@link AdmissionControl}.
+     */
+    private InetAddress admittedAddress;
+    private volatile boolean admitted;
+
+
+    public WebSocket(MobControllerManager mobControllerManager) {
+        this.mobControllerManager = mobControllerManager;
+        AdmissionControl admission = mobControllerManager.admission;
+        messageLimit = new TokenBucket(admission.maxMessageRate, admission.messageBurst);
+    }
 
     @Override
     public void onWebSocketConnect(Session sess) {
         super.onWebSocketConnect(sess);
-        System.out.println("Socket Connected: " + sess);
-        for (int i = 0; i < controllerAxis.length(); i++) {
-            controllerAxis.set(i, 0f);
+        ServerMetrics metrics = mobControllerManager.metrics;
+        metrics.openConnections.increment();
+        InetSocketAddress remote = sess.getRemoteAddress();
+        InetAddress address = remote == null ? null : remote.getAddress();
+        int rejected = mobControllerManager.admission.open(address);
+        if (rejected >= 0) {
+            // Got past the check before the upgrade at the same time as others.
+            metrics.rejectedConnections.increment(rejected);
+            MobLog.info(null, null, "Turned away {}, too many connections", remote);
+            sess.close(StatusCode.TRY_AGAIN_LATER, "Too many connections");
+            return;
         }
-        for (int i = 0; i < controllerButtons.length(); i++) {
-            controllerButtons.set(i, false);
+        admitted = true;
+        admittedAddress = address;
+        state.reset();
+        String token = requestedSession(sess);
+        MobController resumed = token == null ? null : mobControllerManager.sessions.resume(token, this);
+        if (resumed != null) {
+            resume(resumed, token);
+        } else {
+            MobController created = new MobController(mobControllerManager, this);
+            sessionToken = mobControllerManager.sessions.open(created, mobControllerManager.getMaxControllers());
+            if (sessionToken == null) {
+                // Others joined between the upgrade being admitted and now.
+                metrics.rejectedConnections.increment(ServerMetrics.REJECTED_GAME_FULL);
+                MobLog.info(null, null, "Turned away {}, full", remote);
+                sess.close(StatusCode.TRY_AGAIN_LATER, "Full");
+                return;
+            }
+            controller = created;
+            mobControllerManager.connectionQueue.add(controller);
+            MobLog.info(controller, sessionToken, "Socket connected");
+        }
+        sendHello();
+        sendPacing(mobControllerManager.getMaxClientSendRate());
+        if (mobControllerManager.getMotionRate() > 0) {
+            sendMotionRate(mobControllerManager.getMotionRate());
         }
-        controller = new MobController(mobControllerManager, this);
+        lastReceivedNanos = System.nanoTime();
+        pingTask = mobControllerManager.scheduler.scheduleAtFixedRate(this::ping, PING_INTERVAL_MS, PING_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static String requestedSession(Session sess) {
+        return requestedSession(sess.getUpgradeRequest());
+    }
+
+    static String requestedSession(UpgradeRequest request) {
+        List<String> values = request.getParameterMap().get(SESSION_PARAMETER);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Takes over a controller from an earlier socket of the same phone, keeping the player's details.
+     */
+    private void resume(MobController resumed, String token) {
+        WebSocket previous = resumed.getWebSocket();
+        playerName = previous.playerName;
+        colour1 = previous.colour1;
+        colour2 = previous.colour2;
+        controller = resumed;
+        sessionToken = token;
+        resumed.rebind(this);
+        // This socket's state starts with nothing pressed, make sure event driven mode hears about that.
+        queueEvents(PadBinaryProtocol.ALL_BUTTONS | PadBinaryProtocol.ALL_AXES << ControllerState.AXIS_CHANGED_SHIFT, 0,
+                new float[SDL_CONTROLLER_AXIS_MAX]);
+        MobLog.info(resumed, token, "Socket resumed");
+        // The phone may be back before we noticed the old connection had died.
+        if (previous.isConnected()) {
+            previous.getSession().close();
+        }
+    }
+
+    /**
+     * Creates the controller for a socket that has no network session, for feeding input directly in benchmarks.
+     */
+    MobController connectLocal(String name) {
+        state.reset();
+        controller = new MobController(mobControllerManager, this, name);
         mobControllerManager.connectionQueue.add(controller);
+        return controller;
     }
 
     @Override
     public void onWebSocketText(String message) {
         super.onWebSocketText(message);
-        //System.out.println(controller + " Received TEXT message: " + message);
-        JsonValue fromJson = new JsonReader().parse(message);
+        long receivedNanos = System.nanoTime();
+        lastReceivedNanos = receivedNanos;
+        // Counted in characters, which for the ASCII JSON the client sends are bytes.
+        ServerMetrics metrics = mobControllerManager.metrics;
+        metrics.received(message.length());
+        if (!messageLimit.take(receivedNanos)) {
+            dropped(ServerMetrics.DROPPED_RATE);
+            return;
+        }
+        if (padUpdateParser.parse(message)) {
+            metrics.parse.record(System.nanoTime() - receivedNanos);
+            PadUpdateParser p = padUpdateParser;
+            int changed = padUpdate(p.buttonMask, p.buttonValues, p.axisMask, p.axisValues, receivedNanos);
+            stats.messageReceived(receivedNanos, p.sequence, p.clientTime, isButtonEdge(changed));
+            return;
+        }
+        // Everything the client sends is a JSON object, so anything else is turned away before it's parsed.
+        if (!isJsonObject(message)) {
+            dropped(ServerMetrics.DROPPED_GARBAGE);
+            return;
+        }
+        try {
+            JsonValue fromJson = new JsonReader().parse(message);
+            metrics.parse.record(System.nanoTime() - receivedNanos);
+            handleJson(fromJson, receivedNanos);
+        } catch (RuntimeException e) {
+            // Not JSON after all, or missing fields that a message of its type must have.
+            dropped(ServerMetrics.DROPPED_GARBAGE);
+            MobLog.debug(controller, sessionToken, "Bad message: {}", e);
+        }
+    }
+
+    static boolean isJsonObject(String message) {
+        int start = 0;
+        int end = message.length() - 1;
+        while (start <= end && message.charAt(start) <= ' ') start++;
+        while (end >= start && message.charAt(end) <= ' ') end--;
+        return start < end && message.charAt(start) == '{' && message.charAt(end) == '}';
+    }
 
+    private void dropped(int reason) {
+        mobControllerManager.metrics.droppedMessages.increment(reason);
+        stats.rejectedMessages.increment();
+    }
 
+    private void handleJson(JsonValue fromJson, long receivedNanos) {
         String type = fromJson.getString("__type__", "");
         switch (type) {
             case "set_name":
@@ -59,23 +224,99 @@ public class WebSocket extends WebSocketAdapter {
                 int[] rgb2 = fromJson.get("rgb").asIntArray();
                 colour2 = new Color(rgb2[0], rgb2[1], rgb2[2]);
                 break;
+            case "pong":
+                pong(fromJson, receivedNanos);
+                break;
             default:
-                padUpdate(fromJson);
+                padUpdate(fromJson, receivedNanos);
                 break;
         }
+    }
 
-
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len) {
+        super.onWebSocketBinary(payload, offset, len);
+        long receivedNanos = System.nanoTime();
+        lastReceivedNanos = receivedNanos;
+        ServerMetrics metrics = mobControllerManager.metrics;
+        metrics.received(len);
+        if (!messageLimit.take(receivedNanos)) {
+            dropped(ServerMetrics.DROPPED_RATE);
+            return;
+        }
+        if (motion.decode(payload, offset, len, receivedNanos)) {
+            metrics.parse.record(System.nanoTime() - receivedNanos);
+            return;
+        }
+        if (padBinaryProtocol.decode(payload, offset, len)) {
+            metrics.parse.record(System.nanoTime() - receivedNanos);
+            PadBinaryProtocol p = padBinaryProtocol;
+            int changed = padUpdate(PadBinaryProtocol.ALL_BUTTONS, p.buttonValues, PadBinaryProtocol.ALL_AXES,
+                    p.axisValues, receivedNanos);
+            stats.messageReceived(receivedNanos, p.sequence, p.clientTime, isButtonEdge(changed));
+        } else {
+            dropped(ServerMetrics.DROPPED_GARBAGE);
+        }
     }
 
-    private void padUpdate(JsonValue fromJson) {
+    private void padUpdate(JsonValue fromJson, long receivedNanos) {
+        int buttonMask = 0;
+        int buttonValues = 0;
+        int axisMask = 0;
         for (int i = 0; i < SDL_CONTROLLER_BUTTON_MAX; i++) {
             if (fromJson.has(buttonNames[i])) {
-                controllerButtons.set(i, fromJson.getBoolean(buttonNames[i]));
+                buttonMask |= 1 << i;
+                if (fromJson.getBoolean(buttonNames[i])) {
+                    buttonValues |= 1 << i;
+                }
             }
         }
+        float[] axisValues = new float[SDL_CONTROLLER_AXIS_MAX];
         for (int i = 0; i < SDL_CONTROLLER_AXIS_MAX; i++) {
             if (fromJson.has(axisNames[i])) {
-                controllerAxis.set(i, fromJson.getFloat(axisNames[i]));
+                axisMask |= 1 << i;
+                axisValues[i] = fromJson.getFloat(axisNames[i]);
+            }
+        }
+        int changed = padUpdate(buttonMask, buttonValues, axisMask, axisValues, receivedNanos);
+        int sequence = fromJson.has("__seq__") ? fromJson.getInt("__seq__") & 0xffff : -1;
+        stats.messageReceived(receivedNanos, sequence, fromJson.getLong("__time__", -1), isButtonEdge(changed));
+    }
+
+    /**
+     * Applies the values whose bits are set in buttonMask/axisMask.
+     *
+     * @return which values changed, see {@link ControllerState#update(int, int, int, float[], long)}
+     */
+    int padUpdate(int buttonMask, int buttonValues, int axisMask, float[] axisValues, long receivedNanos) {
+        int changed = state.update(buttonMask, buttonValues, axisMask, axisValues, receivedNanos);
+        queueEvents(changed, buttonValues, axisValues);
+        return changed;
+    }
+
+    /**
+     * The client sends button changes straight away rather than waiting for its next turn under the send rate.
+     */
+    private static boolean isButtonEdge(int changed) {
+        return (changed & ((1 << ControllerState.AXIS_CHANGED_SHIFT) - 1)) != 0;
+    }
+
+    /**
+     * In event driven mode, tells the game thread exactly what changed rather than letting it diff every controller.
+     */
+    private void queueEvents(int changed, int buttonValues, float[] axisValues) {
+        if (changed == 0 || !mobControllerManager.isEventDriven()) {
+            return;
+        }
+        InputEventQueue queue = mobControllerManager.eventQueue;
+        for (int i = 0; i < SDL_CONTROLLER_BUTTON_MAX; i++) {
+            if ((changed & (1 << i)) != 0) {
+                queue.offer(controller, InputEventQueue.buttonEvent(i, (buttonValues & (1 << i)) != 0));
+            }
+        }
+        for (int i = 0; i < SDL_CONTROLLER_AXIS_MAX; i++) {
+            if ((changed & (1 << (ControllerState.AXIS_CHANGED_SHIFT + i))) != 0) {
+                queue.offer(controller, InputEventQueue.axisEvent(i, axisValues[i]));
             }
         }
     }
@@ -83,29 +324,215 @@ public class WebSocket extends WebSocketAdapter {
     @Override
     public void onWebSocketClose(int statusCode, String reason) {
         super.onWebSocketClose(statusCode, reason);
-        System.out.println("Socket Closed: [" + statusCode + "] " + reason);
-        mobControllerManager.disConnectionQueue.add(controller);
+        MobLog.info(controller, sessionToken, "Socket closed [{}] {}", statusCode, reason);
+        ServerMetrics metrics = mobControllerManager.metrics;
+        metrics.openConnections.decrement();
+        metrics.disconnects.increment(ServerMetrics.disconnectReason(statusCode, timedOut));
+        if (admitted) {
+            admitted = false;
+            mobControllerManager.admission.close(admittedAddress);
+        }
+        ScheduledFuture<?> task = pingTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+        MobController c = controller;
+        if (c == null || c.getWebSocket() != this) {
+            // Already taken over by a newer socket.
+            controller = null;
+            return;
+        }
+        // Let go of everything, so the player doesn't keep running while the phone is away.
+        padUpdate(PadBinaryProtocol.ALL_BUTTONS, 0, PadBinaryProtocol.ALL_AXES, new float[SDL_CONTROLLER_AXIS_MAX],
+                System.nanoTime());
         controller = null;
+        if (sessionToken != null) {
+            mobControllerManager.sessions.park(sessionToken, c, this);
+        } else {
+            mobControllerManager.disConnectionQueue.add(c);
+        }
     }
 
     @Override
     public void onWebSocketError(Throwable cause) {
         super.onWebSocketError(cause);
-        cause.printStackTrace(System.err);
+        if (cause instanceof CloseException) {
+            // The phone broke a protocol rule or a limit, e.g. sent too big a message. Its connection is closed.
+            MobLog.info(controller, sessionToken, "Socket closed: {}", cause.getMessage());
+        } else {
+            MobLog.error(controller, sessionToken, "Socket error", null, cause);
+        }
     }
 
-    public void sendRumble(float leftMagnitude, float rightMagnitude, int duration_ms) {
-        String json = "{ \"header\": \"vibrate\", \"data\": { \"mag_left\": " + leftMagnitude + ", \"mag_right\": " + rightMagnitude + ", \"duration_ms\": " + duration_ms + " } }";
-        System.out.println(json);
+    /**
+     * Runs on the manager's scheduler. Sends the next ping, or drops the connection if the client has stopped
+     * talking, so a half dead phone doesn't hold on to its controller until TCP gives up.
+     * Clients that have never answered a ping (e.g. a page cached from an older server) are never dropped.
+     */
+    private void ping() {
+        long now = System.nanoTime();
+        if (answersPings && now - lastReceivedNanos > TimeUnit.MILLISECONDS.toNanos(PING_TIMEOUT_MS)) {
+            MobLog.info(controller, sessionToken, "Ping timeout");
+            timedOut = true;
+            try {
+                Session session = getSession();
+                if (session != null) {
+                    session.disconnect();
+                }
+            } catch (IOException e) {
+                MobLog.error(controller, "Disconnect failed", e);
+            }
+            return;
+        }
+        try {
+            RemoteEndpoint remote = getRemote();
+            if (remote != null) {
+                long millis = System.currentTimeMillis();
+                pingSentNanos = now;
+                pingSentMillis = millis;
+                String json = "{ \"header\": \"ping\", \"data\": { \"t0\": " + millis + " } }";
+                remote.sendStringByFuture(json);
+                mobControllerManager.metrics.sent(json.length());
+            }
+        } catch (Exception e) {
+            MobLog.error(controller, "Send failed", e);
+        }
+    }
+
+    private void pong(JsonValue fromJson, long receivedNanos) {
+        long t0 = fromJson.getLong("t0", -1);
+        if (t0 != pingSentMillis) {
+            return;
+        }
+        double t1 = fromJson.getDouble("t1");
+        double t2 = fromJson.getDouble("t2");
+        double elapsed = (receivedNanos - pingSentNanos) / 1e6;
+        linkQuality.sample(t0, t1, t2, t0 + elapsed, elapsed - (t2 - t1));
+        answersPings = true;
+        stats.clientCoalescedMessages = fromJson.getLong("coalesced", stats.clientCoalescedMessages);
+    }
+
+    /**
+     * Tells the client which optional protocol features this server supports.
+     * Clients that don't understand it ignore it and carry on sending JSON.
+     */
+    private void sendHello() {
+        String json = "{ \"header\": \"hello\", \"data\": { \"binary_version\": " + PadBinaryProtocol.VERSION
+                + ", \"session\": \"" + sessionToken + "\" } }";
         try {
             RemoteEndpoint remote = getRemote();
             if (remote != null) {
                 remote.sendString(json);
-                getRemote().flush();
+                mobControllerManager.metrics.sent(json.length());
+            }
+        } catch (Exception e) {
+            MobLog.error(controller, "Send failed", e);
+        }
+    }
+
+    /**
+     * Asks the client to send pad updates at most this often. Button presses are always sent immediately,
+     * stick movement in between is merged into the next update.
+     */
+    void sendPacing(int maxRateHz) {
+        stats.pacingIntervalNanos = maxRateHz > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRateHz : 0;
+        String json = "{ \"header\": \"pacing\", \"data\": { \"max_rate_hz\": " + maxRateHz + " } }";
+        try {
+            RemoteEndpoint remote = getRemote();
+            if (remote != null) {
+                remote.sendStringByFuture(json);
+                mobControllerManager.metrics.sent(json.length());
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            MobLog.error(controller, "Send failed", e);
         }
+    }
+
+    /**
+     * Asks the client to stream its accelerometer and gyroscope at this many samples per second, 0 to stop.
+     */
+    void sendMotionRate(int rateHz) {
+        String json = "{ \"header\": \"motion\", \"data\": { \"rate_hz\": " + rateHz + " } }";
+        try {
+            RemoteEndpoint remote = getRemote();
+            if (remote != null) {
+                remote.sendStringByFuture(json);
+                mobControllerManager.metrics.sent(json.length());
+            }
+        } catch (Exception e) {
+            MobLog.error(controller, "Send failed", e);
+        }
+    }
+
+    /**
+     * Doesn't send anything itself, the latest rumble is sent by {@link #flushOutput()} on the next pollState.
+     */
+    public void sendRumble(float leftMagnitude, float rightMagnitude, int duration_ms) {
+        rumbleOutput.set(leftMagnitude, rightMagnitude, duration_ms);
+    }
+
+    /**
+     * Sends anything waiting to go to the phone, without blocking. Called by the manager once per frame.
+     */
+    void flushOutput() {
+        int sent = rumbleOutput.flush(getRemote());
+        if (sent > 0) {
+            mobControllerManager.metrics.sent(sent);
+        }
+    }
+
+    /**
+     * Queues a message that was encoded once for several phones. The buffer itself is never modified, each
+     * socket writes from its own duplicate of it.
+     * If more than maxQueuedBytes is already waiting to be written to this phone the message is dropped,
+     * unless nothing at all is waiting.
+     *
+     * @return false if the message was dropped
+     */
+    boolean sendShared(ByteBuffer message, long maxQueuedBytes) {
+        RemoteEndpoint remote = getRemote();
+        if (remote == null) {
+            return false;
+        }
+        final int size = message.remaining();
+        long queued = outboundBytes.addAndGet(size);
+        if (queued > maxQueuedBytes && queued != size) {
+            outboundBytes.addAndGet(-size);
+            stats.droppedOutboundMessages.increment();
+            return false;
+        }
+        try {
+            remote.sendBytes(message.duplicate(), new WriteCallback() {
+                @Override
+                public void writeFailed(Throwable x) {
+                    outboundBytes.addAndGet(-size);
+                }
+
+                @Override
+                public void writeSuccess() {
+                    outboundBytes.addAndGet(-size);
+                    mobControllerManager.metrics.sent(size);
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            outboundBytes.addAndGet(-size);
+            MobLog.error(controller, "Send failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Encodes a message to phones as UTF-8 JSON, in the same header/data form as the messages the server sends
+     * itself. Phones get it as a binary frame.
+     */
+    static ByteBuffer encodeMessage(String header, String data) {
+        String json = "{ \"header\": \"" + header + "\", \"data\": " + data + " }";
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
 
+    static String rumbleMessage(float leftMagnitude, float rightMagnitude, int duration_ms) {
+        return "{ \"header\": \"vibrate\", \"data\": { \"mag_left\": " + leftMagnitude + ", \"mag_right\": "
+                + rightMagnitude + ", \"duration_ms\": " + duration_ms + " } }";
     }
 }
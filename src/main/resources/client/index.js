@@ -45,7 +45,7 @@ function onConnected() {
 	settingsPage.loadConfig();
 }
 
-const conn = new Conn(logger, onConnected);
+const conn = new Conn(logger, config, onConnected);
 const padPage = new PadPage(conn, logger, onSettingsPageRequested);
 
 const onPadPageRequested = (padIndex) => {
@@ -80,3 +80,11 @@ if ('standalone' in window.navigator) {
 		alert("For best performance please press the share button at the centre bottom of the screen and select 'add to homescreen' from the menu.");
 	}
 }
+
+// Only available on https or localhost, see ServerConfig.keyStorePath. Over plain http on the LAN
+// the browser's HTTP cache has to do.
+if ('serviceWorker' in navigator && window.isSecureContext) {
+	navigator.serviceWorker.register('/sw.js').catch((error) => {
+		logger.log(`Service worker registration failed: ${error}`);
+	});
+}
@@ -2,46 +2,10 @@
  * CanvasImage
  *
  * Given a HTML Canvas element, provides utilities to derive
- * properties and read pixels drawn on the Canvas.
+ * properties and draw on the Canvas.
  */
 
 export default (function ctr() {
-	function getRgbasBoundingBoxInternal(rgbas, allPixels, width) {
-		let minX;
-		let minY;
-		let maxX;
-		let maxY;
-
-		for (let i = 0; i < allPixels.length; i += 4) {
-			const pixelIndex = i / 4;
-			const pixelX = pixelIndex % width;
-			const pixelY = Math.floor(pixelIndex / width);
-
-			let colourMatches = false;
-
-			rgbas.forEach((rgba) => {
-				const match = true
-					&& rgba[0] === allPixels[i + 0]
-					&& rgba[1] === allPixels[i + 1]
-					&& rgba[2] === allPixels[i + 2]
-					&& rgba[3] === allPixels[i + 3];
-
-				if (match) {
-					colourMatches = true;
-				}
-			});
-
-			if (colourMatches) {
-				if (minX === undefined || pixelX < minX) { minX = pixelX; }
-				if (maxX === undefined || pixelX > maxX) { maxX = pixelX; }
-				if (minY === undefined || pixelY < minY) { minY = pixelY; }
-				if (maxY === undefined || pixelY > maxY) { maxY = pixelY; }
-			}
-		}
-
-		return [minX, minY, maxX - minX, maxY - minY];
-	}
-
 	function CanvasImage(canvasElement, image) {
 		this.canvasElement = canvasElement;
 		this.image = image;
@@ -66,15 +30,6 @@ export default (function ctr() {
 		this.context.drawImage(this.image, 0, 0, size.w, size.h);
 	};
 
-	CanvasImage.prototype.getPixels = function getPixels(x, y, w, h) {
-		const size = this.getSize();
-		return this.context.getImageData(x || 0, y || 0, w || size.w, h || size.h).data;
-	};
-
-	CanvasImage.prototype.getRgbasBoundingBox = function getRgbasBoundingBox(rgbas) {
-		return getRgbasBoundingBoxInternal(rgbas, this.getPixels(), this.getSize().w);
-	};
-
 	CanvasImage.prototype.clear = function clear() {
 		const size = this.getSize();
 		this.context.clearRect(0, 0, size.w, size.h);
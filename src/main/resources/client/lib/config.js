@@ -16,7 +16,8 @@ export default class Config {
 		try {
 			const configString = localStorage.getItem(this.configKey);
 			const configObject = JSON.parse(configString);
-			return configObject;
+			// Nothing is stored on a first visit, which parses as null.
+			return configObject || {};
 		} catch (error) {
 			return {};
 		}
@@ -1,15 +1,30 @@
 const SOCKET_TIMEOUT_MS = 10 * 1000;
 
+function now() {
+	// Sub-millisecond where supported, for clock synchronisation with the server.
+	if (window.performance && performance.timeOrigin) {
+		return performance.timeOrigin + performance.now();
+	}
+	return Date.now();
+}
+
 export default (function iife() {
-	function Conn(logger, onConnected) {
+	function Conn(logger, config, onConnected) {
 		this.logger = logger;
+		this.config = config;
 		this.url = new URL(window.location.origin);
-		this.url.protocol = 'ws';
-		this.url.pathname = 'mobcontrol/';
+		this.url.protocol = window.location.protocol === 'https:' ? 'wss' : 'ws';
+		// A lobby server hosts many games, the page's ?room= says which one to join.
+		const room = new URLSearchParams(window.location.search).get('room');
+		this.url.pathname = room ? `mobcontrol/${encodeURIComponent(room)}` : 'mobcontrol/';
 		this.subs = [];
 		this.socketState = null;
 		this.socketStateLastModified = Date.now();
 		this.onConnected = onConnected;
+		this.binaryVersion = 0;
+		this.coalesced = 0;
+		// Messages the server broadcasts to many phones arrive as UTF-8 JSON in binary frames.
+		this.decoder = new TextDecoder();
 
 		this.setupSocket();
 
@@ -37,12 +52,32 @@ export default (function iife() {
 		}
 
 		this.updateSocketState(null);
+		this.binaryVersion = 0;
+
+		// Lets the server give us back the same controller if we were connected a moment ago.
+		const session = this.config.getValue('SESSION_TOKEN');
+		if (session) {
+			this.url.searchParams.set('session', session);
+		}
 
 		this.logger.logAndNotify('Connecting...');
 		this.socket = new WebSocket(this.url);
+		this.socket.binaryType = 'arraybuffer';
 
 		this.socket.onmessage = (event) => {
-			const { header, __type__, data } = JSON.parse(event.data);
+			const received = now();
+			const text = typeof event.data === 'string' ? event.data : this.decoder.decode(event.data);
+			const { header, __type__, data } = JSON.parse(text);
+
+			if (header === 'hello') {
+				this.binaryVersion = data.binary_version || 0;
+				if (data.session) {
+					this.config.setValue('SESSION_TOKEN', data.session);
+				}
+			} else if (header === 'ping') {
+				this.send(JSON.stringify({ __type__: 'pong', t0: data.t0, t1: received, t2: now(), coalesced: this.coalesced }));
+				return;
+			}
 
 			this.subs.forEach((sub) => {
 				sub(header || __type__, data);
@@ -97,7 +132,6 @@ export default (function iife() {
 		if (this.socket.readyState !== WebSocket.OPEN) {
 			this.logger.log(`WARNING: sending to closed socket. bufferedamount: ${this.socket.bufferedAmount}`);
 		}
-		console.log(payload);
 		this.socket.send(payload);
 	};
 
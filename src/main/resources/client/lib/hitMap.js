@@ -0,0 +1,70 @@
+/**
+ * HitMap
+ *
+ * Says which section colour is under a point of the pad, from the map the server makes of section.png
+ * (PadLayoutCompiler.java), so nothing has to be read back from a canvas.
+ * Points are given in canvas pixels along with the canvas size, since the image is stretched to fit.
+ */
+
+export default (function iife() {
+	function HitMap({ width, height, colours, boxes, rows }) {
+		this.width = width;
+		this.height = height;
+		this.colours = colours;
+		this.boxes = boxes;
+		this.rows = rows;
+		this.indexOfColour = {};
+		colours.forEach((colour, i) => { this.indexOfColour[colour] = i; });
+	}
+
+	HitMap.load = function load(url) {
+		return fetch(url).then((response) => {
+			if (!response.ok) {
+				throw new Error(`${url}: ${response.status}`);
+			}
+			return response.json();
+		}).then((json) => new HitMap(json));
+	};
+
+	// Returns the colour string, e.g. '255,0,0,255', or undefined outside the image.
+	HitMap.prototype.colourAt = function colourAt(x, y, canvasWidth, canvasHeight) {
+		const imageX = Math.floor((x * this.width) / canvasWidth);
+		const imageY = Math.floor((y * this.height) / canvasHeight);
+		if (imageX < 0 || imageY < 0 || imageX >= this.width || imageY >= this.height) {
+			return undefined;
+		}
+		// A row is [end, colour, end, colour, ...], only a few runs long.
+		const row = this.rows[imageY];
+		for (let i = 0; i < row.length; i += 2) {
+			if (imageX < row[i]) {
+				return this.colours[row[i + 1]];
+			}
+		}
+		return undefined;
+	};
+
+	// Bounding box in canvas pixels of everything in any of the colours, as [x, y, w, h].
+	HitMap.prototype.boundingBox = function boundingBox(colourStrings, canvasWidth, canvasHeight) {
+		let minX = Infinity;
+		let minY = Infinity;
+		let maxX = -Infinity;
+		let maxY = -Infinity;
+		colourStrings.forEach((colour) => {
+			const index = this.indexOfColour[colour];
+			if (index === undefined) { return; }
+			const [x, y, w, h] = this.boxes[index];
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x + w);
+			maxY = Math.max(maxY, y + h);
+		});
+		if (minX === Infinity) {
+			return [undefined, undefined, NaN, NaN];
+		}
+		const scaleX = canvasWidth / this.width;
+		const scaleY = canvasHeight / this.height;
+		return [minX * scaleX, minY * scaleY, (maxX - minX) * scaleX, (maxY - minY) * scaleY];
+	};
+
+	return HitMap;
+}());
@@ -0,0 +1,119 @@
+/**
+ * Motion
+ *
+ * Streams the accelerometer and gyroscope to the server once it asks for them with a rate.
+ * Samples are quantized to 16 bits and batched, several to a binary frame, at the pad's send rate.
+ * Must match MotionBuffer.java.
+ */
+
+export default (function iife() {
+	const TYPE = 0x81;
+	const HEADER_LENGTH = 4;
+	const SAMPLE_LENGTH = 12;
+	const MAX_SAMPLES_PER_FRAME = 16;
+	const ACCELERATION_SCALE = 500;
+	const ROTATION_SCALE = 10;
+	const DEFAULT_MAX_SEND_RATE_HZ = 60;
+
+	function quantize(value, scale) {
+		return Math.max(-32768, Math.min(32767, Math.round((value || 0) * scale)));
+	}
+
+	function Motion(conn, logger) {
+		this.conn = conn;
+		this.logger = logger;
+		this.buffer = new ArrayBuffer(HEADER_LENGTH + (MAX_SAMPLES_PER_FRAME * SAMPLE_LENGTH));
+		this.view = new DataView(this.buffer);
+		this.count = 0;
+		this.rateHz = 0;
+		this.maxSendRateHz = DEFAULT_MAX_SEND_RATE_HZ;
+		this.sampleIntervalMs = 0;
+		this.lastSampleTime = 0;
+		this.lastSendTime = 0;
+		this.listening = false;
+		this.onDeviceMotion = (event) => { this.sample(event); };
+
+		this.conn.addSub((type, data) => {
+			switch (type) {
+			case 'motion': { this.setRate(data.rate_hz); break; }
+			case 'pacing': { this.maxSendRateHz = data.max_rate_hz; break; }
+			default: { break; }
+			}
+		});
+	}
+
+	Motion.prototype.setRate = function setRate(rateHz) {
+		this.rateHz = rateHz;
+		this.count = 0;
+		if (rateHz > 0 && !this.listening) {
+			this.listen();
+		} else if (rateHz <= 0 && this.listening) {
+			window.removeEventListener('devicemotion', this.onDeviceMotion);
+			this.listening = false;
+		}
+	};
+
+	Motion.prototype.listen = function listen() {
+		if (!('DeviceMotionEvent' in window)) {
+			this.logger.log('No motion sensors');
+			return;
+		}
+		this.listening = true;
+		// iOS only allows motion after the user has touched the page.
+		if (typeof DeviceMotionEvent.requestPermission === 'function') {
+			window.addEventListener('pointerdown', () => {
+				DeviceMotionEvent.requestPermission().then((permission) => {
+					if (permission === 'granted' && this.listening) {
+						window.addEventListener('devicemotion', this.onDeviceMotion);
+					}
+				}).catch((error) => { this.logger.log(`Motion permission failed: ${error}`); });
+			}, { once: true });
+		} else {
+			window.addEventListener('devicemotion', this.onDeviceMotion);
+		}
+	};
+
+	Motion.prototype.sample = function sample(event) {
+		const now = performance.now();
+		const intervalMs = 1000 / this.rateHz;
+		// Allow for events arriving a little early, or a 60 Hz sensor could only be sampled at 30 Hz.
+		if (now - this.lastSampleTime < intervalMs * 0.8) {
+			return;
+		}
+		this.sampleIntervalMs = Math.max(intervalMs, event.interval || 0);
+		this.lastSampleTime = now;
+
+		const acceleration = event.accelerationIncludingGravity || {};
+		const rotation = event.rotationRate || {};
+		const offset = HEADER_LENGTH + (this.count * SAMPLE_LENGTH);
+		this.view.setInt16(offset, quantize(acceleration.x, ACCELERATION_SCALE), true);
+		this.view.setInt16(offset + 2, quantize(acceleration.y, ACCELERATION_SCALE), true);
+		this.view.setInt16(offset + 4, quantize(acceleration.z, ACCELERATION_SCALE), true);
+		this.view.setInt16(offset + 6, quantize(rotation.beta, ROTATION_SCALE), true);
+		this.view.setInt16(offset + 8, quantize(rotation.gamma, ROTATION_SCALE), true);
+		this.view.setInt16(offset + 10, quantize(rotation.alpha, ROTATION_SCALE), true);
+		this.count += 1;
+
+		const sendIntervalMs = this.maxSendRateHz > 0 ? 1000 / this.maxSendRateHz : 0;
+		if (this.count === MAX_SAMPLES_PER_FRAME || now - this.lastSendTime >= sendIntervalMs) {
+			this.flush(now);
+		}
+	};
+
+	Motion.prototype.flush = function flush(now) {
+		const { count } = this;
+		this.count = 0;
+		this.lastSendTime = now;
+		// Nothing is kept while disconnected, old motion is no use to anyone.
+		if (this.conn.socket.readyState !== WebSocket.OPEN) {
+			return;
+		}
+		this.view.setUint8(0, TYPE);
+		this.view.setUint8(1, count);
+		this.view.setUint16(2, Math.min(0xffff, Math.round(this.sampleIntervalMs * 10)), true);
+		// send() copies the bytes, so the buffer can be reused straight away.
+		this.conn.send(new Uint8Array(this.buffer, 0, HEADER_LENGTH + (count * SAMPLE_LENGTH)));
+	};
+
+	return Motion;
+}());
@@ -0,0 +1,74 @@
+/**
+ * PadProtocol
+ *
+ * Encodes the full pad state into the compact binary frame understood by the server.
+ * Must match PadBinaryProtocol.java.
+ */
+
+export default (function iife() {
+	const VERSION = 1;
+	const FRAME_LENGTH = 22;
+	const FLAG_TIMESTAMP = 1;
+
+	// Bit/slot order must match MobController.buttonNames and MobController.axisNames.
+	const buttonNames = [
+		'BUTTON_A',
+		'BUTTON_B',
+		'BUTTON_X',
+		'BUTTON_Y',
+		'BUTTON_BACK',
+		'BUTTON_GUIDE',
+		'BUTTON_START',
+		'BUTTON_LEFTSTICK',
+		'BUTTON_RIGHTSTICK',
+		'BUTTON_LEFTSHOULDER',
+		'BUTTON_RIGHTSHOULDER',
+		'BUTTON_DPAD_UP',
+		'BUTTON_DPAD_DOWN',
+		'BUTTON_DPAD_LEFT',
+		'BUTTON_DPAD_RIGHT',
+	];
+
+	const axisNames = [
+		'AXIS_LEFTX',
+		'AXIS_LEFTY',
+		'AXIS_RIGHTX',
+		'AXIS_RIGHTY',
+		'AXIS_TRIGGERLEFT',
+		'AXIS_TRIGGERRIGHT',
+	];
+
+	function quantizeAxis(value) {
+		const clamped = Math.max(-1, Math.min(1, value || 0));
+		return Math.round(clamped * 32767);
+	}
+
+	function PadProtocol() {
+		this.buffer = new ArrayBuffer(FRAME_LENGTH);
+		this.view = new DataView(this.buffer);
+		this.sequence = 0;
+	}
+
+	PadProtocol.VERSION = VERSION;
+
+	PadProtocol.prototype.encode = function encode(state) {
+		let buttons = 0;
+		buttonNames.forEach((name, i) => {
+			if (state[name]) { buttons |= (1 << i); }
+		});
+
+		this.sequence = (this.sequence + 1) & 0xffff;
+
+		this.view.setUint8(0, VERSION);
+		this.view.setUint8(1, FLAG_TIMESTAMP);
+		this.view.setUint16(2, this.sequence, true);
+		this.view.setUint16(4, buttons, true);
+		axisNames.forEach((name, i) => {
+			this.view.setInt16(6 + (2 * i), quantizeAxis(state[name]), true);
+		});
+		this.view.setUint32(18, Date.now() % 0x100000000, true);
+		return this.buffer;
+	};
+
+	return PadProtocol;
+}());
@@ -2,7 +2,7 @@
  * PadState
  *
  * Encapsulates the data structure that represents the pad state.
- * Stores a graphic representing coloured hitbox sections for each pad input.
+ * Finds the coloured hitbox section of each pad input from the server's hit map of the section graphic.
  * Updates the state based on pointer up/move/down events on the graphic.
  */
 
@@ -73,17 +73,6 @@ export default (function iife() {
 		return validInputTypes.length > 0 ? validInputTypes[0] : 'unknown';
 	}
 
-	function colourStringToRgbas(colourString) {
-		const rgbaStrings = colourString.split('|');
-		const rgbaStringToRgba = (x) => x.split(',').map((y) => parseInt(y, 10));
-		const rgbas = rgbaStrings.map(rgbaStringToRgba);
-		return rgbas;
-	}
-
-	function rgbaToColourString(rgba) {
-		return rgba.join(',');
-	}
-
 	function getBoundingBoxRelativePosition(boundingBox, absX, absY) {
 		const [x, y, w, h] = boundingBox;
 		const centerX = x + (w / 2);
@@ -101,7 +90,8 @@ export default (function iife() {
 
 	function PadState(sectionCanvasImage, onSettingsPageRequested) {
 		/* eslint-disable no-multi-spaces */
-		this.sectionCanvasImage = sectionCanvasImage;   // Image whose colours define the hitbox of each input.
+		this.sectionCanvasImage = sectionCanvasImage;   // Canvas the section graphic is stretched over.
+		this.hitMap = null;                             // Which section colour is where, see HitMap.
 		this.colourBoundingBoxes = {};                  // Bounding box for each hitbox.
 		this.activePointerInfoMap = {};                 // Metadata for each currently-active pointer.
 		this.deltaState = {};                           // Changes made to the pad state, since the last call to flushDeltaState().
@@ -118,13 +108,24 @@ export default (function iife() {
 	 *
 	 */
 
+	PadState.prototype.setHitMap = function setHitMap(hitMap) {
+		this.hitMap = hitMap;
+		this.initAxisBoundingBoxes();
+	};
+
+	// Cheap, the boxes come precomputed in the hit map and only need scaling to the canvas.
 	PadState.prototype.initAxisBoundingBoxes = function initAxisBoundingBoxes() {
+		this.colourBoundingBoxes = {};
+		if (!this.hitMap) {
+			return;
+		}
+
 		const colourStringToInputMap = Object.assign({}, ...Object.values(inputColours));
+		const { w, h } = this.sectionCanvasImage.getSize();
 
 		Object.keys(colourStringToInputMap).forEach((colourString) => {
 			const input = colourStringToInputMap[colourString];
-			const rgbas = colourStringToRgbas(colourString);
-			this.colourBoundingBoxes[input] = this.sectionCanvasImage.getRgbasBoundingBox(rgbas);
+			this.colourBoundingBoxes[input] = this.hitMap.boundingBox(colourString.split('|'), w, h);
 		});
 	};
 
@@ -234,9 +235,15 @@ export default (function iife() {
 		Object.values(inputColours.axis2D).forEach((axis2D) => { this.setState(handlers.axis2D.reset(axis2D)); });
 	};
 
-	PadState.prototype.getInputFromRgba = function getInputFromRgba(rgba) {
-		const colourString = rgbaToColourString(rgba);
+	PadState.prototype.getColourStringAt = function getColourStringAt(absX, absY) {
+		if (!this.hitMap) {
+			return undefined;
+		}
+		const { w, h } = this.sectionCanvasImage.getSize();
+		return this.hitMap.colourAt(absX, absY, w, h);
+	};
 
+	PadState.prototype.getInputFromColourString = function getInputFromColourString(colourString) {
 		const dirpad = inputColours.dirpad[colourString];
 		const button = inputColours.button[colourString];
 		const axis1D = inputColours.axis1D[colourString];
@@ -258,13 +265,12 @@ export default (function iife() {
 
 	PadState.prototype.onPointerDown = function onPointerDown(pointer, absX, absY) {
 		// Get associated input.
-		const rgba = this.sectionCanvasImage.getPixels(absX, absY, 1, 1).slice(0, 4);
-		const colourString = rgbaToColourString(rgba);
+		const colourString = this.getColourStringAt(absX, absY);
 		if (colourString === settingsPageColourString) {
 			this.onSettingsPageRequested();
 		}
 
-		const input = this.getInputFromRgba(rgba);
+		const input = this.getInputFromColourString(colourString);
 		const inputType = getInputTypeFromInput(input);
 
 		if (input) {
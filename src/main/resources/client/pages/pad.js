@@ -1,6 +1,11 @@
 import CanvasImage from '../lib/canvasImage.js';
 import PadState from '../lib/padState.js';
 import Vibration from '../lib/vibration.js';
+import PadProtocol from '../lib/padProtocol.js';
+import Motion from '../lib/motion.js';
+import HitMap from '../lib/hitMap.js';
+
+const DEFAULT_MAX_SEND_RATE_HZ = 60;
 
 export default class PadPage {
 	constructor(conn, logger, onSettingsPageRequested) {
@@ -10,6 +15,14 @@ export default class PadPage {
 
 		this.padIndex = null;
 		this.lastPayload = null;
+		this.sequence = 0;
+		this.fullState = {};
+		this.pendingDelta = {};
+		this.padProtocol = new PadProtocol();
+
+		this.maxSendRateHz = DEFAULT_MAX_SEND_RATE_HZ;
+		this.lastSendTime = 0;
+		this.sendTimer = null;
 
 		this.canvasGuide = document.getElementById('canvasGuide');
 		this.sectionCanvas = document.getElementById('sectionCanvas');
@@ -22,6 +35,8 @@ export default class PadPage {
 
 		this.initRedrawOnResize();
 		this.initVibration();
+		this.initPacing();
+		this.motion = new Motion(this.conn, this.logger);
 	}
 
 	initCanvasImages(padIndex) {
@@ -50,6 +65,19 @@ export default class PadPage {
 			this.logger.logAndNotify(`Graphic ${padIndex} loaded`);
 		});
 
+		// Nothing can be pressed until the new layout's hit map arrives.
+		if (this.padState) {
+			this.padState.setHitMap(null);
+		}
+		HitMap.load(`./pads/${padIndex}/hitmap.json`).then((hitMap) => {
+			if (this.padIndex === padIndex) {
+				this.padState.setHitMap(hitMap);
+				this.redrawOverlay();
+			}
+		}).catch((error) => {
+			this.logger.logAndNotify(`Failed to load hit map ${padIndex}: ${error}`);
+		});
+
 		this.sectionCanvasImage = new CanvasImage(this.sectionCanvas, sectionImage);
 		this.graphicCanvasImage = new CanvasImage(this.graphicCanvas, graphicImage);
 		this.overlayCanvasImage = new CanvasImage(this.overlayCanvas, null);
@@ -161,12 +189,75 @@ export default class PadPage {
 		this.conn.addSub(sub);
 	}
 
+	initPacing() {
+		const sub = (type, data) => {
+			switch (type) {
+			case 'pacing': { this.maxSendRateHz = data.max_rate_hz; break; }
+			default: { break; }
+			}
+		};
+
+		this.conn.addSub(sub);
+	}
+
+	hasButtonEdge(deltaState) {
+		return Object.keys(deltaState).some((key) => key.startsWith('BUTTON_') && deltaState[key] !== !!this.fullState[key]);
+	}
+
+	// True if deltaState differs from what would be sent already, i.e. merging it in defers a real change.
+	changesPending(deltaState) {
+		return Object.keys(deltaState).some((key) => {
+			const previous = key in this.pendingDelta ? this.pendingDelta[key] : this.fullState[key];
+			return key.startsWith('BUTTON_') ? deltaState[key] !== !!previous : deltaState[key] !== previous;
+		});
+	}
+
+	// Button presses go out immediately, anything else is merged until the server's rate limit allows another send.
 	sendState() {
 		const deltaState = this.padState.flushState();
-		const thisPayload = JSON.stringify(deltaState, null, 4);
+		const changed = this.changesPending(deltaState);
+		Object.assign(this.pendingDelta, deltaState);
+
+		const now = performance.now();
+		const intervalMs = this.maxSendRateHz > 0 ? 1000 / this.maxSendRateHz : 0;
+		const waitMs = intervalMs - (now - this.lastSendTime);
+
+		if (waitMs <= 0 || this.hasButtonEdge(this.pendingDelta)) {
+			this.flushState();
+		} else {
+			if (changed) {
+				this.conn.coalesced += 1;
+			}
+			if (!this.sendTimer) {
+				this.sendTimer = setTimeout(() => { this.flushState(); }, waitMs);
+			}
+		}
+	}
+
+	flushState() {
+		if (this.sendTimer) {
+			clearTimeout(this.sendTimer);
+			this.sendTimer = null;
+		}
+		this.lastSendTime = performance.now();
+
+		const deltaState = this.pendingDelta;
+		this.pendingDelta = {};
+		Object.assign(this.fullState, deltaState);
+
+		if (this.conn.binaryVersion === PadProtocol.VERSION) {
+			if (Object.keys(deltaState).length > 0) {
+				this.lastPayload = null;
+				this.conn.send(this.padProtocol.encode(this.fullState));
+			}
+			return;
+		}
+
+		const thisPayload = JSON.stringify(deltaState);
 		if (this.lastPayload !== thisPayload) {
 			this.lastPayload = thisPayload;
-			this.conn.send(thisPayload);
+			this.sequence = (this.sequence + 1) & 0xffff;
+			this.conn.send(JSON.stringify({ ...deltaState, __seq__: this.sequence, __time__: Date.now() }));
 		}
 	}
 
@@ -82,6 +82,28 @@ export default class SettingsPage {
 		this.showPadButton2.onclick = () => {
 			this.setPadIndex(2);
 		};
+
+		this.addPadLayoutButtons();
+	}
+
+	// Layouts the game added while the server was running get a button each.
+	addPadLayoutButtons() {
+		fetch('./pads/index.json', { cache: 'no-cache' }).then((response) => response.json()).then((layouts) => {
+			let previous = this.showPadButton2;
+			layouts.forEach(({ pad, name }) => {
+				if (document.getElementById(`showPadButton${pad}`)) {
+					return;
+				}
+				const button = document.createElement('button');
+				button.id = `showPadButton${pad}`;
+				button.textContent = name || `Show Pad ${pad}`;
+				button.onclick = () => {
+					this.setPadIndex(pad);
+				};
+				previous.after(button);
+				previous = button;
+			});
+		}).catch(() => {});
 	}
 
 	//
@@ -0,0 +1,40 @@
+/**
+ * Service Worker
+ *
+ * Keeps the whole client in the browser's cache so that coming back to the page, e.g. after the screen
+ * locks, only needs the WebSocket to reconnect. The server replaces __VERSION__ with a hash of the client,
+ * so a new build changes this file and the browser installs the new worker, which fetches the new files.
+ */
+
+const VERSION = '__VERSION__';
+const CACHE_NAME = `mobcontrol-${VERSION}`;
+
+self.addEventListener('install', (event) => {
+	event.waitUntil((async () => {
+		const response = await fetch(`/asset-manifest.json?v=${VERSION}`, { cache: 'no-store' });
+		const manifest = await response.json();
+		const cache = await caches.open(CACHE_NAME);
+		await cache.addAll(manifest.files.map((file) => `${file}?v=${manifest.version}`));
+		await self.skipWaiting();
+	})());
+});
+
+self.addEventListener('activate', (event) => {
+	event.waitUntil((async () => {
+		const names = await caches.keys();
+		await Promise.all(names.filter((name) => name !== CACHE_NAME).map((name) => caches.delete(name)));
+		await self.clients.claim();
+	})());
+});
+
+self.addEventListener('fetch', (event) => {
+	const url = new URL(event.request.url);
+	if (event.request.method !== 'GET' || url.origin !== self.location.origin || url.pathname.startsWith('/mobcontrol/')) {
+		return;
+	}
+	event.respondWith((async () => {
+		const cache = await caches.open(CACHE_NAME);
+		const cached = await cache.match(event.request, { ignoreSearch: true });
+		return cached || fetch(event.request);
+	})());
+});
@@ -0,0 +1,141 @@
+package uk.co.electronstudio.mobcontrol;
+
+import com.badlogic.gdx.controllers.Controller;
+import com.badlogic.gdx.controllers.ControllerAdapter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records a headless manager driven by random input, replays the file and checks the listeners saw the same
+ * calls on the same frames.
+ */
+public class InputReplayTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes every listener call as a line, with the frame counted from when recording started.
+     */
+    static class CallLog extends ControllerAdapter {
+        final MobControllerManager manager;
+        final long startFrame;
+        final StringBuilder calls = new StringBuilder();
+
+        CallLog(MobControllerManager manager) {
+            this.manager = manager;
+            startFrame = manager.frame;
+        }
+
+        private StringBuilder call(Controller controller, String what) {
+            return calls.append(manager.frame - startFrame).append(' ').append(controller.getName()).append(' ')
+                    .append(what);
+        }
+
+        @Override
+        public void connected(Controller controller) {
+            call(controller, "connected\n");
+        }
+
+        @Override
+        public void disconnected(Controller controller) {
+            call(controller, "disconnected\n");
+        }
+
+        @Override
+        public boolean buttonDown(Controller controller, int buttonCode) {
+            call(controller, "down ").append(buttonCode).append('\n');
+            return false;
+        }
+
+        @Override
+        public boolean buttonUp(Controller controller, int buttonCode) {
+            call(controller, "up ").append(buttonCode).append('\n');
+            return false;
+        }
+
+        @Override
+        public boolean axisMoved(Controller controller, int axisCode, float value) {
+            call(controller, "axis ").append(axisCode).append(' ').append(value).append('\n');
+            return false;
+        }
+    }
+
+    @Test
+    public void replayPolled() throws IOException {
+        assertReplaysSameCalls(false);
+    }
+
+    @Test
+    public void replayEventDriven() throws IOException {
+        assertReplaysSameCalls(true);
+    }
+
+    private void assertReplaysSameCalls(boolean eventDriven) throws IOException {
+        Path file = folder.newFile().toPath();
+        MobControllerManager manager = MobControllerManager.headless();
+        manager.setEventDriven(eventDriven);
+        manager.startRecording(file);
+        CallLog recorded = new CallLog(manager);
+        manager.addListener(recorded);
+
+        Random random = new Random(1);
+        List<MobController> controllers = new ArrayList<>();
+        float[] axisValues = new float[MobController.SDL_CONTROLLER_AXIS_MAX];
+        for (int frame = 0; frame < 500; frame++) {
+            if (controllers.isEmpty() || random.nextInt(20) == 0) {
+                controllers.add(new WebSocket(manager).connectLocal("p" + frame));
+            } else if (controllers.size() > 1 && random.nextInt(30) == 0) {
+                manager.disConnectionQueue.add(controllers.remove(random.nextInt(controllers.size())));
+            }
+            for (int i = 0; i < 5; i++) {
+                int button = 1 << random.nextInt(MobController.SDL_CONTROLLER_BUTTON_MAX);
+                for (int axis = 0; axis < axisValues.length; axis++) {
+                    axisValues[axis] = random.nextInt(5) / 4f;
+                }
+                WebSocket socket = controllers.get(random.nextInt(controllers.size())).getWebSocket();
+                socket.padUpdate(button, random.nextBoolean() ? button : 0, 1 << random.nextInt(axisValues.length),
+                        axisValues, System.nanoTime());
+            }
+            manager.pollState();
+        }
+        manager.stopRecording();
+        manager.close();
+
+        InputReplay replay = new InputReplay(file);
+        replay.setSpeed(0);
+        CallLog replayed = new CallLog(replay.getManager());
+        replay.getManager().addListener(replayed);
+        while (replay.pollState()) {
+        }
+        assertTrue(replay.isFinished());
+        replay.close();
+
+        assertTrue(recorded.calls.length() > 0);
+        assertEquals(recorded.calls.toString(), replayed.calls.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "not a recording".getBytes("UTF-8"));
+        new InputReplay(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedHeader() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{'M', 'C', 'I'});
+        new InputReplay(file);
+    }
+}
@@ -0,0 +1,345 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator. Opens lots of WebSocket connections to a MobControl server and sends touch input
+ * the way the phone client does, while a simulated game loop polls the manager at 60 fps.
+ * Reports server message throughput, game frame time, CPU (percent of one core, load generator included), GC and
+ * input latency once a second.
+ * <p>
+ * Runs its own server on localhost unless --uri is given. Arguments, all optional:
+ * <pre>
+ * --controllers=16,64,256  controller counts to step through, connections are added between steps
+ * --rate=60                messages per second per controller
+ * --seconds=10             length of each step
+ * --format=json|binary     message format
+ * --uri=ws://host:port/mobcontrol/  use an existing server, frame time and latency are then not available.
+ *                          Its connection and rate limits (see ServerConfig) must allow for the load.
+ * </pre>
+ * e.g. {@code ./gradlew loadTest --args="--controllers=16,128,512 --format=binary"}
+ */
+public class LoadTest {
+
+    private static final int FPS = 60;
+
+    private final int rate;
+    private final boolean binary;
+    private final URI uri;
+    private final MobControllerManager manager;
+
+    private final WebSocketClient client;
+    private final ScheduledExecutorService phoneScheduler;
+    private final List<Phone> phones = new ArrayList<>();
+
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+
+    private final Histogram frameTime = new Histogram();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        String controllers = "16,64,256";
+        int rate = 60;
+        int seconds = 10;
+        boolean binary = false;
+        URI uri = null;
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "controllers":
+                    controllers = value;
+                    break;
+                case "rate":
+                    rate = Integer.parseInt(value);
+                    break;
+                case "seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "format":
+                    binary = value.equals("binary");
+                    break;
+                case "uri":
+                    uri = new URI(value);
+                    break;
+                default:
+                    System.err.println("Unknown argument " + arg);
+                    System.exit(1);
+            }
+        }
+
+        LoadTest test = new LoadTest(rate, binary, uri);
+        try {
+            for (String step : controllers.split(",")) {
+                test.runStep(Integer.parseInt(step.trim()), seconds);
+            }
+        } finally {
+            test.close();
+        }
+        System.exit(0);
+    }
+
+    LoadTest(int rate, boolean binary, URI uri) throws Exception {
+        this.rate = rate;
+        this.binary = binary;
+        if (uri == null) {
+            // Every connection comes from localhost, and --rate may be above what phones send.
+            ServerConfig config = new ServerConfig();
+            config.maxConnections = 0;
+            config.maxConnectionsPerAddress = 0;
+            config.maxMessageRate = 0;
+            manager = new MobControllerManager(config);
+            URI http = manager.getURI();
+            this.uri = new URI("ws", null, "localhost", http.getPort(), "/mobcontrol/", null, null);
+            Thread gameLoop = new Thread(this::gameLoop, "LoadTest game loop");
+            gameLoop.setDaemon(true);
+            gameLoop.start();
+        } else {
+            manager = null;
+            this.uri = uri;
+        }
+
+        QueuedThreadPool clientThreads = new QueuedThreadPool();
+        clientThreads.setName("LoadTest client");
+        clientThreads.setDaemon(true);
+        client = new WebSocketClient();
+        client.setExecutor(clientThreads);
+        client.start();
+
+        phoneScheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+                r -> {
+                    Thread thread = new Thread(r, "LoadTest phones");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Simulates a game that polls input once per frame and measures how long that takes.
+     */
+    private void gameLoop() {
+        long frameNanos = TimeUnit.SECONDS.toNanos(1) / FPS;
+        long next = System.nanoTime();
+        while (running) {
+            long start = System.nanoTime();
+            manager.pollState();
+            frameTime.record((System.nanoTime() - start) / 1000);
+            next += frameNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+            } else {
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    private void runStep(int controllers, int seconds) throws Exception {
+        System.out.printf("%n== %d controllers, %d msg/s each, %s, %s%n", controllers, rate,
+                binary ? "binary" : "json", uri);
+        while (phones.size() < controllers) {
+            Phone phone = new Phone(phones.size());
+            client.connect(phone, uri).get(10, TimeUnit.SECONDS);
+            phones.add(phone);
+        }
+        Thread.sleep(1000);
+
+        frameTime.reset();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        long lastCpu = processCpuNanos(os);
+        long lastWall = System.nanoTime();
+        long lastGcCount = gcCount();
+        long lastGcTime = gcTime();
+        long lastSent = messagesSent.get();
+        long lastReceived = manager == null ? 0 : manager.getStats().getMessageCount();
+
+        System.out.println("   sent/s  recv/s  frame p50/p99/max us  cpu%  gc/s  gc ms/s"
+                + "  applyLatency p99 us  jitter p99 us  rtt ms");
+        for (int i = 0; i < seconds; i++) {
+            Thread.sleep(1000);
+            long now = System.nanoTime();
+            double wallSeconds = (now - lastWall) / 1e9;
+            long cpu = processCpuNanos(os);
+            long gcCount = gcCount();
+            long gcTime = gcTime();
+            long sent = messagesSent.get();
+
+            String serverColumns = "";
+            if (manager != null) {
+                ControllerStats stats = manager.getStats();
+                long received = stats.getMessageCount();
+                serverColumns = String.format("%7.0f  %6d/%6d/%6d",
+                        (received - lastReceived) / wallSeconds,
+                        frameTime.getPercentile(50), frameTime.getPercentile(99), frameTime.getMax());
+                lastReceived = received;
+                frameTime.reset();
+                serverColumns += String.format("  %4.0f  %4.1f  %7.1f  %19d  %13d  %6.1f",
+                        cpu < 0 ? -1 : 100.0 * (cpu - lastCpu) / (now - lastWall),
+                        (gcCount - lastGcCount) / wallSeconds, (gcTime - lastGcTime) / wallSeconds,
+                        stats.getApplyLatency().getPercentile(99), stats.getNetworkJitter().getPercentile(99),
+                        averageRoundTripTime());
+            }
+            System.out.printf("  %7.0f %s%n", (sent - lastSent) / wallSeconds, serverColumns);
+
+            lastWall = now;
+            lastCpu = cpu;
+            lastGcCount = gcCount;
+            lastGcTime = gcTime;
+            lastSent = sent;
+        }
+        if (sendErrors.get() > 0) {
+            System.out.println("  send errors: " + sendErrors.get());
+        }
+    }
+
+    private float averageRoundTripTime() {
+        float total = 0;
+        int count = 0;
+        for (MobController controller : manager.getControllerArray()) {
+            float rtt = controller.getRoundTripTime();
+            if (rtt >= 0) {
+                total += rtt;
+                count++;
+            }
+        }
+        return count == 0 ? -1 : total / count;
+    }
+
+    private static long processCpuNanos(OperatingSystemMXBean os) {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private void close() throws Exception {
+        running = false;
+        phoneScheduler.shutdownNow();
+        for (Phone phone : phones) {
+            Session session = phone.getSession();
+            if (session != null) {
+                session.close();
+            }
+        }
+        client.stop();
+        if (manager != null) {
+            manager.close();
+        }
+    }
+
+    /**
+     * One simulated phone. Moves the left stick round in a circle and taps A now and then, like a thumb would,
+     * and answers the server's pings.
+     */
+    private class Phone extends WebSocketAdapter {
+        private final Random random;
+        private final double phase;
+        private ScheduledFuture<?> task;
+        private int sequence;
+        private boolean buttonDown;
+
+        Phone(int index) {
+            random = new Random(index);
+            phase = random.nextDouble() * Math.PI * 2;
+        }
+
+        @Override
+        public void onWebSocketConnect(Session sess) {
+            super.onWebSocketConnect(sess);
+            long period = TimeUnit.SECONDS.toMicros(1) / rate;
+            task = phoneScheduler.scheduleAtFixedRate(this::send, random.nextInt((int) period), period,
+                    TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+            super.onWebSocketClose(statusCode, reason);
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            if (message.contains("\"ping\"")) {
+                String t0 = message.replaceAll("(?s).*\"t0\":\\s*(\\d+).*", "$1");
+                double now = System.currentTimeMillis();
+                send("{\"__type__\":\"pong\",\"t0\":" + t0 + ",\"t1\":" + now + ",\"t2\":" + now + "}");
+            }
+        }
+
+        private void send() {
+            if (!isConnected()) {
+                return;
+            }
+            sequence = (sequence + 1) & 0xffff;
+            double angle = phase + System.nanoTime() / 1e9 * Math.PI;
+            float x = (float) Math.cos(angle);
+            float y = (float) Math.sin(angle);
+            if (random.nextInt(rate) == 0) {
+                buttonDown = !buttonDown;
+            }
+            long time = System.currentTimeMillis();
+            try {
+                if (binary) {
+                    byte[] raw = new byte[PadBinaryProtocol.FRAME_LENGTH + 4];
+                    ByteBuffer frame = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+                    frame.put((byte) PadBinaryProtocol.VERSION).put((byte) PadBinaryProtocol.FLAG_TIMESTAMP);
+                    frame.putShort((short) sequence).putShort((short) (buttonDown ? 1 : 0));
+                    frame.putShort((short) (x * 32767)).putShort((short) (y * 32767));
+                    frame.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+                    frame.putInt((int) time);
+                    // the client masks the payload in place, so every frame needs a fresh buffer
+                    getRemote().sendBytesByFuture(ByteBuffer.wrap(raw));
+                } else {
+                    send("{\"AXIS_LEFTX\":" + x + ",\"AXIS_LEFTY\":" + y + ",\"BUTTON_A\":" + buttonDown
+                            + ",\"__seq__\":" + sequence + ",\"__time__\":" + time + "}");
+                }
+                messagesSent.incrementAndGet();
+            } catch (Exception e) {
+                sendErrors.incrementAndGet();
+            }
+        }
+
+        private void send(String message) {
+            try {
+                getRemote().sendStringByFuture(message);
+            } catch (Exception e) {
+                sendErrors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -47,11 +47,14 @@ public class MobTest {
 
         SDLInfoPanel[] controllerTabs = setup(tabbedPane, testFrame);
 
-        try {
-            Desktop.getDesktop().browse(controllerManager.getURI());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // The window is up while the server starts, open the client once it can be loaded.
+        controllerManager.startAsync().thenAccept(uri -> {
+            try {
+                Desktop.getDesktop().browse(uri);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
 
         while (true) {
             mainLoop(testFrame, controllerTabs);
@@ -61,8 +64,9 @@ public class MobTest {
     private static void init() {
 
         try {
-            controllerManager = new MobControllerManager();
-            controllerManager.start();
+            ServerConfig config = new ServerConfig();
+            config.autoStart = false;
+            controllerManager = new MobControllerManager(config);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         } catch (URISyntaxException e) {
@@ -72,8 +76,9 @@ public class MobTest {
 
     private static void mainLoop(JFrame testFrame, SDLInfoPanel[] controllerTabs) {
         if (requestRestart) {
-            controllerManager.close();
-            init();
+            // Keeps the server's threads, connector and client files, and the controllers, which rejoin.
+            controllerManager.stop();
+            controllerManager.startAsync();
             requestRestart = false;
         }
         try {
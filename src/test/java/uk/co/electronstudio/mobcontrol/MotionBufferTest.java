@@ -0,0 +1,91 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class MotionBufferTest {
+
+    private final MotionBuffer buffer = new MotionBuffer();
+    private final float[] sample = new float[MotionBuffer.VALUES];
+
+    /**
+     * A frame whose samples each have all six values set to first, first + 1 and so on, raw.
+     */
+    private static byte[] frame(int count, int first) {
+        ByteBuffer frame = ByteBuffer.allocate(MotionBuffer.HEADER_LENGTH + count * MotionBuffer.SAMPLE_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        frame.put((byte) MotionBuffer.TYPE).put((byte) count).putShort((short) 50);
+        for (int i = 0; i < count; i++) {
+            for (int v = 0; v < MotionBuffer.VALUES; v++) {
+                frame.putShort((short) (first + i));
+            }
+        }
+        return frame.array();
+    }
+
+    @Test
+    public void decodesSamplesAndTimes() {
+        byte[] frame = ByteBuffer.allocate(MotionBuffer.HEADER_LENGTH + 2 * MotionBuffer.SAMPLE_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put((byte) MotionBuffer.TYPE).put((byte) 2).putShort((short) 50)
+                .putShort((short) 4900).putShort((short) -500).putShort((short) 0)
+                .putShort((short) 900).putShort((short) -10).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 4900)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                .array();
+        assertTrue(buffer.decode(frame, 0, frame.length, 1_000_000_000L));
+        assertEquals(2, buffer.written());
+
+        assertTrue(buffer.read(0, sample));
+        assertArrayEquals(new float[]{9.8f, -1f, 0, 90f, -1f, 0}, sample, 0.0001f);
+        // 5 ms between samples, the last one taken when the frame arrived.
+        assertEquals(1_000_000_000L - 5_000_000L, buffer.readNanos());
+        assertTrue(buffer.read(1, sample));
+        assertEquals(9.8f, sample[2], 0.0001f);
+        assertEquals(1_000_000_000L, buffer.readNanos());
+    }
+
+    @Test
+    public void rejectsBadFrames() {
+        byte[] frame = frame(3, 0);
+        assertFalse(buffer.decode(frame, 0, 0, 0));
+        assertFalse(buffer.decode(frame, 0, MotionBuffer.HEADER_LENGTH - 1, 0));
+        assertFalse("truncated", buffer.decode(frame, 0, frame.length - 1, 0));
+        frame[1] = 4;
+        assertFalse("count past the end", buffer.decode(frame, 0, frame.length, 0));
+        frame[1] = 0;
+        assertFalse("no samples", buffer.decode(frame, 0, frame.length, 0));
+        byte[] tooMany = frame(MotionBuffer.MAX_SAMPLES_PER_FRAME + 1, 0);
+        assertFalse("too many samples", buffer.decode(tooMany, 0, tooMany.length, 0));
+        frame = frame(3, 0);
+        frame[0] = PadBinaryProtocol.VERSION;
+        assertFalse("pad frame", buffer.decode(frame, 0, frame.length, 0));
+        assertEquals(0, buffer.written());
+        assertFalse("nothing written yet", buffer.read(0, sample));
+    }
+
+    @Test
+    public void wrapsAroundTheRing() {
+        int frames = MotionBuffer.CAPACITY / MotionBuffer.MAX_SAMPLES_PER_FRAME * 3 + 1;
+        for (int f = 0; f < frames; f++) {
+            byte[] frame = frame(MotionBuffer.MAX_SAMPLES_PER_FRAME, f * MotionBuffer.MAX_SAMPLES_PER_FRAME);
+            assertTrue(buffer.decode(frame, 0, frame.length, f));
+        }
+        long written = buffer.written();
+        assertEquals(frames * MotionBuffer.MAX_SAMPLES_PER_FRAME, written);
+        long oldest = buffer.oldestReadable(written);
+        assertEquals(written - MotionBuffer.CAPACITY, oldest);
+
+        assertFalse("overwritten", buffer.read(oldest - 1, sample));
+        assertFalse("overwritten", buffer.read(0, sample));
+        for (long i = oldest; i < written; i++) {
+            assertTrue(buffer.read(i, sample));
+            assertEquals((short) i * (1f / 500f), sample[0], 0.0001f);
+            assertEquals((short) i * (1f / 10f), sample[5], 0.0001f);
+        }
+    }
+}
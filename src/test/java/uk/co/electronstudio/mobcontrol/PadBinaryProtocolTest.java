@@ -0,0 +1,91 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class PadBinaryProtocolTest {
+
+    private final PadBinaryProtocol protocol = new PadBinaryProtocol();
+
+    private static ByteBuffer frame(int flags, int sequence, int buttons, int... axes) {
+        ByteBuffer frame = ByteBuffer.allocate(PadBinaryProtocol.FRAME_LENGTH + 4).order(ByteOrder.LITTLE_ENDIAN);
+        frame.put((byte) PadBinaryProtocol.VERSION).put((byte) flags).putShort((short) sequence)
+                .putShort((short) buttons);
+        for (int i = 0; i < MobController.SDL_CONTROLLER_AXIS_MAX; i++) {
+            frame.putShort((short) (i < axes.length ? axes[i] : 0));
+        }
+        return frame;
+    }
+
+    @Test
+    public void decodesFrame() {
+        ByteBuffer frame = frame(0, 7, 1 | 1 << 14, 32767, -32767, 16384);
+        assertTrue(protocol.decode(frame.array(), 0, PadBinaryProtocol.FRAME_LENGTH));
+        assertEquals(7, protocol.sequence);
+        assertEquals(1 | 1 << 14, protocol.buttonValues);
+        assertEquals(1f, protocol.axisValues[0], 0);
+        assertEquals(-1f, protocol.axisValues[1], 0);
+        assertEquals(0.5f, protocol.axisValues[2], 0.0001f);
+        assertEquals(0f, protocol.axisValues[3], 0);
+        assertEquals(-1, protocol.clientTime);
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        ByteBuffer frame = frame(0, 1, 2);
+        byte[] payload = new byte[3 + PadBinaryProtocol.FRAME_LENGTH];
+        System.arraycopy(frame.array(), 0, payload, 3, PadBinaryProtocol.FRAME_LENGTH);
+        assertTrue(protocol.decode(payload, 3, PadBinaryProtocol.FRAME_LENGTH));
+        assertEquals(1, protocol.sequence);
+        assertEquals(2, protocol.buttonValues);
+    }
+
+    @Test
+    public void sequenceIsUnsigned() {
+        assertTrue(protocol.decode(frame(0, 0xffff, 0).array(), 0, PadBinaryProtocol.FRAME_LENGTH));
+        assertEquals(0xffff, protocol.sequence);
+        assertTrue(protocol.decode(frame(0, 0x10000, 0).array(), 0, PadBinaryProtocol.FRAME_LENGTH));
+        assertEquals(0, protocol.sequence);
+    }
+
+    @Test
+    public void clampsAndMasks() {
+        assertTrue(protocol.decode(frame(0, 0, 0xffff, -32768).array(), 0, PadBinaryProtocol.FRAME_LENGTH));
+        assertEquals(-1f, protocol.axisValues[0], 0);
+        assertEquals(PadBinaryProtocol.ALL_BUTTONS, protocol.buttonValues);
+    }
+
+    @Test
+    public void decodesTimestamp() {
+        long now = System.currentTimeMillis();
+        ByteBuffer frame = frame(PadBinaryProtocol.FLAG_TIMESTAMP, 0, 0);
+        frame.putInt(PadBinaryProtocol.FRAME_LENGTH, (int) now);
+        assertTrue(protocol.decode(frame.array(), 0, PadBinaryProtocol.FRAME_LENGTH + 4));
+        assertEquals(now, protocol.clientTime);
+    }
+
+    @Test
+    public void rejectsTruncatedAndForeignFrames() {
+        byte[] frame = frame(0, 0, 0).array();
+        assertFalse(protocol.decode(frame, 0, 0));
+        assertFalse(protocol.decode(frame, 0, PadBinaryProtocol.FRAME_LENGTH - 1));
+        byte[] timed = frame(PadBinaryProtocol.FLAG_TIMESTAMP, 0, 0).array();
+        assertFalse(protocol.decode(timed, 0, PadBinaryProtocol.FRAME_LENGTH + 3));
+        frame[0] = PadBinaryProtocol.VERSION + 1;
+        assertFalse(protocol.decode(frame, 0, PadBinaryProtocol.FRAME_LENGTH));
+        frame[0] = (byte) MotionBuffer.TYPE;
+        assertFalse(protocol.decode(frame, 0, PadBinaryProtocol.FRAME_LENGTH));
+    }
+
+    @Test
+    public void unwrapsAcrossTheLow32Bits() {
+        long wrap = 0x500000000L;
+        assertEquals(wrap - 10, PadBinaryProtocol.unwrapMillis((wrap - 10) & 0xffffffffL, wrap + 10));
+        assertEquals(wrap + 10, PadBinaryProtocol.unwrapMillis((wrap + 10) & 0xffffffffL, wrap - 10));
+        assertEquals(wrap + 1234, PadBinaryProtocol.unwrapMillis(1234, wrap + 1000));
+    }
+}
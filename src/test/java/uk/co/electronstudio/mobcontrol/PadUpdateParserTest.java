@@ -0,0 +1,78 @@
+package uk.co.electronstudio.mobcontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PadUpdateParserTest {
+
+    private final PadUpdateParser parser = new PadUpdateParser();
+
+    @Test
+    public void parsesButtonsAxesAndMeta() {
+        assertTrue(parser.parse("{ \"BUTTON_A\": true, \"BUTTON_DPAD_RIGHT\": false, \"AXIS_LEFTX\": -0.25,"
+                + " \"AXIS_TRIGGERRIGHT\": 1e0, \"__seq__\": 42, \"__time__\": 1571234567890 }"));
+        assertEquals(1 | 1 << 14, parser.buttonMask);
+        assertEquals(1, parser.buttonValues);
+        assertEquals(1 | 1 << 5, parser.axisMask);
+        assertEquals(-0.25f, parser.axisValues[0], 0);
+        assertEquals(1f, parser.axisValues[5], 0);
+        assertEquals(42, parser.sequence);
+        assertEquals(1571234567890L, parser.clientTime);
+    }
+
+    @Test
+    public void resetsBetweenMessages() {
+        assertTrue(parser.parse("{\"BUTTON_B\":true,\"__seq__\":1,\"__time__\":2}"));
+        assertTrue(parser.parse("{}"));
+        assertEquals(0, parser.buttonMask);
+        assertEquals(0, parser.buttonValues);
+        assertEquals(0, parser.axisMask);
+        assertEquals(-1, parser.sequence);
+        assertEquals(-1, parser.clientTime);
+    }
+
+    @Test
+    public void sequenceWraps() {
+        assertTrue(parser.parse("{\"__seq__\":65535}"));
+        assertEquals(65535, parser.sequence);
+        assertTrue(parser.parse("{\"__seq__\":65536}"));
+        assertEquals(0, parser.sequence);
+        assertTrue(parser.parse("{\"__seq__\":70000}"));
+        assertEquals(70000 - 65536, parser.sequence);
+    }
+
+    @Test
+    public void parsesNumbers() {
+        assertTrue(parser.parse("{\"AXIS_LEFTX\":0.1,\"AXIS_LEFTY\":-1,\"AXIS_RIGHTX\":2.5E-1,\"AXIS_RIGHTY\":-0}"));
+        assertEquals(0.1f, parser.axisValues[0], 0);
+        assertEquals(-1f, parser.axisValues[1], 0);
+        assertEquals(0.25f, parser.axisValues[2], 0);
+        assertEquals(0f, parser.axisValues[3], 0);
+    }
+
+    @Test
+    public void leavesEverythingElseToJsonReader() {
+        String[] messages = {
+                "",
+                "{",
+                "{\"BUTTON_A\":true",
+                "{\"BUTTON_A\":true,}",
+                "{\"BUTTON_A\" true}",
+                "{\"BUTTON_A\":1}",
+                "{\"AXIS_LEFTX\":}",
+                "{\"AXIS_LEFTX\":.}",
+                "{\"AXIS_LEFTX\":1e}",
+                "{\"AXIS_LEFTX\":\"0.5\"}",
+                "{\"BUTTON_\\u0041\":true}",
+                "{\"BUTTON_Z\":true}",
+                "{\"BUTTON_AA\":true}",
+                "{\"type\":\"set_name\",\"name\":\"x\"}",
+                "{\"BUTTON_A\":true} x",
+                "[]",
+        };
+        for (String message : messages) {
+            assertFalse(message, parser.parse(message));
+        }
+    }
+}